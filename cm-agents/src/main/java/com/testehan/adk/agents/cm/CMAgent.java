@@ -9,10 +9,17 @@ import com.testehan.adk.agents.cm.agents.ListingAgents;
 import com.testehan.adk.agents.cm.agents.WhatsAppExpiredListingAgents;
 import com.testehan.adk.agents.cm.agents.WhatsAppInitialContactAgents;
 import com.testehan.adk.agents.cm.config.ConfigLoader;
-import com.testehan.adk.agents.cm.tools.ListingUploader;
+import com.testehan.adk.agents.cm.metrics.Metrics;
+import com.testehan.adk.agents.cm.metrics.MetricsServer;
+import com.testehan.adk.agents.cm.pipeline.TokenBucket;
+import com.testehan.adk.agents.cm.store.ListingJournal;
+import com.testehan.adk.agents.cm.store.SeenUrlIndex;
+import com.testehan.adk.agents.cm.store.UploadOutbox;
+import com.testehan.adk.agents.cm.tools.UploadService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.UncheckedIOException;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
@@ -25,12 +32,38 @@ public class CMAgent {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(CMAgent.class);
 
+    // Shared by the listing agents and the uploads, so a crashed run resumes from each URL's last completed stage.
+    private static final ListingJournal LISTING_JOURNAL = ListingJournal.open(
+            ConfigLoader.getDataDirectory().resolve("listing-journal"),
+            ConfigLoader.getListingJournalTtl(),
+            ConfigLoader.getListingJournalSegmentBytes());
+
+    // A URL is only marked as processed once its listing is in the upload outbox, so a crash before that retries it.
+    private static final SeenUrlIndex SEEN_URL_INDEX = SeenUrlIndex.open(
+            ConfigLoader.getDataDirectory().resolve("seen-urls"),
+            ConfigLoader.getSeenUrlTtl(),
+            ConfigLoader.getSeenUrlBloomBits());
+
     // The run your agent with Dev UI, the ROOT_AGENT should be a global public static variable.
-    public static BaseAgent ROOT_AGENT_ADD_LISTINGS = ListingAgents.createOrchestratorAgent();
+    public static BaseAgent ROOT_AGENT_ADD_LISTINGS = ListingAgents.createOrchestratorAgent(LISTING_JOURNAL, SEEN_URL_INDEX);
     public static BaseAgent ROOT_AGENT_WHATSAPP_INITIAL_CONTACT = WhatsAppInitialContactAgents.createOrchestratorAgentIntialContact();
     public static BaseAgent ROOT_AGENT_WHATSAPP_EXPIRED_LISTING = WhatsAppExpiredListingAgents.createOrchestratorAgentExpiredListing();
 
+    // Shared by all runs, so the pacing towards the CasaMia backend holds across scheduled runs too.
+    private static final TokenBucket UPLOAD_RATE_LIMITER =
+            new TokenBucket(ConfigLoader.getUploadRatePerMinute() / 60.0, ConfigLoader.getUploadRateBurst());
+
     public static void main(String[] args) throws Exception {
+        Metrics.registerMBean();
+        if (ConfigLoader.getMetricsPort() > 0) {
+            try {
+                MetricsServer.start(ConfigLoader.getMetricsHost(), ConfigLoader.getMetricsPort());
+            } catch (UncheckedIOException e) {
+                // The agents don't need the endpoint, the metrics stay available over JMX
+                LOGGER.warn("{}, carrying on without it. {}", e.getMessage(), e.getCause().getMessage());
+            }
+        }
+
         // Create a single-threaded executor that can schedule commands.
         ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
         ScheduledExecutorService scheduler2 = Executors.newSingleThreadScheduledExecutor();
@@ -104,27 +137,53 @@ public class CMAgent {
 
         Content apiUrl = Content.fromParts(Part.fromText(ConfigLoader.getApiEndpointGetLeads()));
 
-        runner.runAsync(USER_ID, session.id(), apiUrl)
-            .filter(event -> {
-                // We only want to process events that have a non-null stateDelta
-                // and contain our specific result key.
-                if (event.actions() == null || event.actions().stateDelta() == null) {
-                    return false; // Discard events without a stateDelta.
-                }
-                // Keep the event only if it contains the "individual_json_result" key.
-                return event.actions().stateDelta().containsKey(OUTPUT_MASTER_ORCHESTRATOR_LISTING);
-            })
-            .blockingForEach(event -> {
-                ConcurrentMap<String, Object> stateDelta = event.actions().stateDelta();
-                String individualJson = (String) stateDelta.get(OUTPUT_MASTER_ORCHESTRATOR_LISTING);
-                String listingSourceUrl = (String) stateDelta.get(OUTPUT_MASTER_ORCHESTRATOR_URL);
-
-                if (individualJson != null && !individualJson.isEmpty()) {
-                    LOGGER.info("✅ Received a result: \n{}", individualJson);
-                    ListingUploader uploader = new ListingUploader();
-                    uploader.upload(individualJson,listingSourceUrl);
-                }
-            });
+        // The upload is the last stage of the listing pipeline. Its bounded queue blocks the consumer below when the
+        // uploads fall behind, which in turn stops pulling new results from the scrape and format stages.
+        UploadService uploadService = new UploadService(
+                UploadOutbox.open(ConfigLoader.getDataDirectory().resolve("upload-outbox")),
+                LISTING_JOURNAL,
+                SEEN_URL_INDEX,
+                UPLOAD_RATE_LIMITER,
+                ConfigLoader.getListingPipelineUploadWorkers(),
+                ConfigLoader.getListingPipelineQueueCapacity(),
+                ConfigLoader.getUploadMaxAttempts(),
+                ConfigLoader.getUploadInitialBackoff());
+        try {
+            uploadService.start();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        try {
+            runner.runAsync(USER_ID, session.id(), apiUrl)
+                .filter(event -> {
+                    // We only want to process events that have a non-null stateDelta
+                    // and contain our specific result key.
+                    if (event.actions() == null || event.actions().stateDelta() == null) {
+                        return false; // Discard events without a stateDelta.
+                    }
+                    // Keep the event only if it contains the "individual_json_result" key.
+                    return event.actions().stateDelta().containsKey(OUTPUT_MASTER_ORCHESTRATOR_LISTING);
+                })
+                .blockingForEach(event -> {
+                    ConcurrentMap<String, Object> stateDelta = event.actions().stateDelta();
+                    String individualJson = (String) stateDelta.get(OUTPUT_MASTER_ORCHESTRATOR_LISTING);
+                    String listingSourceUrl = (String) stateDelta.get(OUTPUT_MASTER_ORCHESTRATOR_URL);
+
+                    if (individualJson != null && !individualJson.isEmpty()) {
+                        LOGGER.info("✅ Received a result: \n{}", individualJson);
+                        uploadService.submit(individualJson, listingSourceUrl);
+                    }
+                });
+        } finally {
+            // Let the queued uploads finish before this run is reported as done.
+            try {
+                uploadService.finishAndAwait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     private static void runRootAgentWhatsAppInitialContact() {
@@ -1,81 +1,115 @@
 package com.testehan.adk.agents.cm;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.genai.types.Schema;
 
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
-import static java.util.Map.entry;
-
+/**
+ * The listing schema, defined once. Both the Gemini schema handed to the LLM formatter agent and the standard JSON
+ * schema used by the local formatter prompt and by validation are generated from the same field list, so they can't
+ * drift apart.
+ */
 public class Schemas {
-    public static final Schema PROPERTY_INFORMATION =
-            Schema.builder()
-                    .type("OBJECT")
-                    .description("Schema for the extracted property information.")
-                    .properties(
-                            Map.ofEntries(
-                                    entry("name",
-                                        Schema.builder()
-                                                .type("STRING")
-                                                .description("Name of the listing.")
-                                                .build()),
-                                    entry("city",
-                                        Schema.builder()
-                                                .type("STRING")
-                                                .description("City where the apartment is located.")
-                                                .build()),
-                                    entry("area",
-                                        Schema.builder()
-                                                .type("STRING")
-                                                .description("This must contain the address if available. If address is not mentioned use area where the apartment is located.")
-                                                .build()),
-                                    entry("shortDescription",
-                                        Schema.builder()
-                                                .type("STRING")
-                                                .description("The apartment description.")
-                                                .build()),
-                                    entry("price",
-                                        Schema.builder()
-                                                .type("INTEGER")
-                                                .description("Price of the apartment. I only want the number, not the currency.")
-                                                .build()),
-                                    entry("surface",
-                                        Schema.builder()
-                                                .type("INTEGER")
-                                                .description("Surface area of the apartment in square meters.")
-                                                .build()),
-                                    entry("noOfRooms",
-                                        Schema.builder()
-                                                .type("INTEGER")
-                                                .description("Number of rooms in the apartment.")
-                                                .build()),
-                                    entry("floor",
-                                        Schema.builder()
-                                                .type("STRING")
-                                                .description("Floor of the apartment.")
-                                                .build()),
-                                    entry("ownerName",
-                                        Schema.builder()
-                                                .type("STRING")
-                                                .description("Name of the owner.")
-                                                .build()),
-                                    entry("imageUrls",
-                                        Schema.builder()
-                                            .type("ARRAY")
-                                            .description("A list of all found image URLs from the page.")
-                                            .items(Schema.builder().type("STRING").build())
-                                            .build())
-                            ))
-                    .required(
-                            List.of(
-                                    "name",
-                                    "city",
-                                    "area",
-                                    "shortDescription",
-                                    "price",
-                                    "surface",
-                                    "noOfRooms",
-                                    "floor",
-                                    "ownerName"))
-                    .build();
+
+    private record Field(String name, String type, String description, boolean required) {
+    }
+
+    private static final List<Field> PROPERTY_FIELDS = List.of(
+            new Field("name", "string", "Name of the listing.", true),
+            new Field("city", "string", "City where the apartment is located.", true),
+            new Field("area", "string", "This must contain the address if available. If address is not mentioned use area where the apartment is located.", true),
+            new Field("shortDescription", "string", "The apartment description.", true),
+            new Field("price", "integer", "Price of the apartment. I only want the number, not the currency.", true),
+            new Field("surface", "integer", "Surface area of the apartment in square meters.", true),
+            new Field("noOfRooms", "integer", "Number of rooms in the apartment.", true),
+            new Field("floor", "integer", "Floor of the apartment. The ground floor (parter) is 0.", true),
+            new Field("ownerName", "string", "Name of the owner.", true),
+            new Field("imageUrls", "array", "A list of all found image URLs from the page.", false)
+    );
+
+    private static final String PROPERTY_DESCRIPTION = "Schema for the extracted property information.";
+
+    /**
+     * The listing as a standard (draft 2020-12) JSON schema.
+     */
+    public static final Map<String, Object> PROPERTY_JSON_SCHEMA = buildJsonSchema(PROPERTY_FIELDS);
+
+    public static final String PROPERTY_JSON_SCHEMA_STRING = toJsonString(PROPERTY_JSON_SCHEMA);
+
+    /**
+     * The listing as a Gemini schema, for LLM agents.
+     */
+    public static final Schema PROPERTY_INFORMATION = buildGeminiSchema();
+
+    /**
+     * The listing as a standard JSON schema without the given fields, for a formatter that only has to fill in the
+     * fields that aren't known yet.
+     */
+    public static String jsonSchemaStringWithout(Collection<String> knownFields) {
+        if (knownFields.isEmpty()) {
+            return PROPERTY_JSON_SCHEMA_STRING;
+        }
+        return toJsonString(buildJsonSchema(PROPERTY_FIELDS.stream()
+                .filter(field -> !knownFields.contains(field.name()))
+                .toList()));
+    }
+
+    private static Map<String, Object> buildJsonSchema(List<Field> fields) {
+        Map<String, Object> properties = new LinkedHashMap<>();
+        for (Field field : fields) {
+            Map<String, Object> property = new LinkedHashMap<>();
+            property.put("type", field.type());
+            property.put("description", field.description());
+            if ("array".equals(field.type())) {
+                property.put("items", Map.of("type", "string"));
+            }
+            properties.put(field.name(), property);
+        }
+
+        Map<String, Object> schema = new LinkedHashMap<>();
+        schema.put("type", "object");
+        schema.put("properties", properties);
+        schema.put("required", fields.stream().filter(Field::required).map(Field::name).toList());
+        return schema;
+    }
+
+    private static Schema buildGeminiSchema() {
+        Map<String, Schema> properties = new LinkedHashMap<>();
+        for (Field field : PROPERTY_FIELDS) {
+            Schema.Builder property = Schema.builder()
+                    .type(field.type().toUpperCase())
+                    .description(field.description());
+            if ("array".equals(field.type())) {
+                property.items(Schema.builder().type("STRING").build());
+            }
+            properties.put(field.name(), property.build());
+        }
+
+        return Schema.builder()
+                .type("OBJECT")
+                .description(PROPERTY_DESCRIPTION)
+                .properties(properties)
+                .required(requiredFieldNames())
+                .build();
+    }
+
+    private static List<String> requiredFieldNames() {
+        return PROPERTY_FIELDS.stream()
+                .filter(Field::required)
+                .map(Field::name)
+                .toList();
+    }
+
+    private static String toJsonString(Map<String, Object> schema) {
+        try {
+            return new ObjectMapper().writeValueAsString(schema);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("Could not serialise the listing schema", e);
+        }
+    }
 }
@@ -6,6 +6,8 @@ import com.google.adk.agents.SequentialAgent;
 import com.google.adk.tools.FunctionTool;
 import com.testehan.adk.agents.cm.agents.helpers.CustomLocalFormatterAgent;
 import com.testehan.adk.agents.cm.agents.helpers.LoopingUrlsProcessorAgent;
+import com.testehan.adk.agents.cm.store.ListingJournal;
+import com.testehan.adk.agents.cm.store.SeenUrlIndex;
 import com.testehan.adk.agents.cm.tools.Tools;
 
 import static com.testehan.adk.agents.cm.Schemas.PROPERTY_INFORMATION;
@@ -104,11 +106,11 @@ public class ListingAgents {
     }
 
     // Agent 4 - The Master Orchestrator with Looping Logic. This is the new Root Agent.
-    public static BaseAgent createOrchestratorAgent() {
+    public static BaseAgent createOrchestratorAgent(ListingJournal journal, SeenUrlIndex seenUrlIndex) {
         return SequentialAgent.builder()
                 .name(MASTER_ORCHESTRATOR_LISTINGS_AGENT_NAME)
                 .description("Manages a data pipeline by fetching a list of URLs and then looping through them to call an extractor agent for each.")
-                .subAgents(apiScout, new LoopingUrlsProcessorAgent(extractor,formatterLocal))  // TODO HERE USE formatter if you want to use online LLM
+                .subAgents(apiScout, new LoopingUrlsProcessorAgent(extractor,formatterLocal,journal,seenUrlIndex))  // TODO HERE USE formatter if you want to use online LLM
                 .build();
     }
 
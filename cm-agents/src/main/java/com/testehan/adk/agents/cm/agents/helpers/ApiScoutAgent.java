@@ -0,0 +1,69 @@
+package com.testehan.adk.agents.cm.agents.helpers;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.adk.agents.BaseAgent;
+import com.google.adk.agents.InvocationContext;
+import com.google.adk.events.Event;
+import com.google.adk.events.EventActions;
+import com.google.genai.types.Content;
+import com.google.genai.types.Part;
+import com.testehan.adk.agents.cm.config.ConfigLoader;
+import com.testehan.adk.agents.cm.tools.CasaMiaApiClient;
+import com.testehan.adk.agents.cm.tools.PagedApiReader;
+import io.reactivex.rxjava3.core.Flowable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static com.testehan.adk.agents.cm.config.Constants.OUTPUT_SCOUT_AGENT;
+
+/**
+ * A deterministic scout: reads the API endpoint from the user message and puts the items it returns into the session
+ * state under {@code OUTPUT_SCOUT_AGENT} as a typed Iterable. There is no LLM in between, so the run doesn't wait for
+ * model round trips and the processors get the items as they are, without markdown fences to strip.
+ * The items are read page by page while the processor iterates them, so only one page is ever held in memory. If the
+ * API can't be read, the iteration simply ends and the processors have nothing (more) to do.
+ * @param <T> The type of the items in the list.
+ */
+public class ApiScoutAgent<T> extends BaseAgent {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ApiScoutAgent.class);
+
+    private static final PagedApiReader API_READER = new PagedApiReader(
+            CasaMiaApiClient.shared(), ConfigLoader.getApiPageSize(), ConfigLoader.getApiMaxPages());
+
+    private final TypeReference<T> itemType;
+
+    public ApiScoutAgent(String name, String description, TypeReference<T> itemType) {
+        super(name, description, null, null, null);
+        this.itemType = itemType;
+    }
+
+    @Override
+    protected Flowable<Event> runAsyncImpl(InvocationContext ctx) {
+        return Flowable.fromCallable(() -> {
+            String apiEndpoint = ctx.userContent()
+                    .map(Content::text)
+                    .map(String::trim)
+                    .orElse("");
+
+            Iterable<T> items = API_READER.items(apiEndpoint, itemType);
+            LOGGER.info("{} hands the items of {} over to be read page by page.", name(), apiEndpoint);
+
+            ConcurrentMap<String, Object> stateUpdate = new ConcurrentHashMap<>();
+            stateUpdate.put(OUTPUT_SCOUT_AGENT, items);
+            return Event.builder()
+                    .author(name())
+                    .content(Content.fromParts(Part.fromText(name() + " is reading the items of " + apiEndpoint + ".")))
+                    .actions(EventActions.builder().stateDelta(stateUpdate).build())
+                    .build();
+        });
+    }
+
+    @Override
+    protected Flowable<Event> runLiveImpl(InvocationContext invocationContext) {
+        return Flowable.error(new UnsupportedOperationException("runLive not implemented."));
+    }
+}
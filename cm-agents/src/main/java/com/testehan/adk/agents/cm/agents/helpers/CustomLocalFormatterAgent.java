@@ -7,14 +7,24 @@ import com.google.adk.agents.InvocationContext;
 import com.google.adk.events.Event;
 import com.google.genai.types.Content;
 import com.google.genai.types.Part;
+import com.testehan.adk.agents.cm.config.ConfigLoader;
+import com.testehan.adk.agents.cm.pipeline.MicroBatcher;
+import com.testehan.adk.agents.cm.store.FormatterCache;
+import com.testehan.adk.agents.cm.tools.HedgedFormatter;
+import com.testehan.adk.agents.cm.tools.PromptPreprocessor;
 import com.testehan.adk.agents.cm.tools.Tools;
 import io.reactivex.rxjava3.core.Flowable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
 
 import static com.testehan.adk.agents.cm.config.Constants.AGENT_VAR_LISTING_SCRAPED_TEXT;
+import static com.testehan.adk.agents.cm.config.Constants.FORMATTER_PROMPT_VERSION;
 
 
 public class CustomLocalFormatterAgent extends BaseAgent {
@@ -22,8 +32,56 @@ public class CustomLocalFormatterAgent extends BaseAgent {
     private static final Logger LOGGER = LoggerFactory.getLogger(CustomLocalFormatterAgent.class);
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
+    // Shared by all formatter agents, since they all work on the same cache files.
+    private static final FormatterCache FORMATTER_CACHE = FormatterCache.open(
+            ConfigLoader.getDataDirectory().resolve("formatter-cache"),
+            FORMATTER_PROMPT_VERSION,
+            ConfigLoader.getFormatterCacheMemoryEntries(),
+            ConfigLoader.getFormatterCacheSegmentBytes(),
+            ConfigLoader.getFormatterCacheMaxBytes(),
+            ConfigLoader.getFormatterCacheTtl());
+
+    private record FormatRequest(String rawText, Set<String> knownFields) {
+    }
+
+    // Gemini CLI first, the Ollama app when the CLI is slow. Null unless hedging is enabled.
+    // The Ollama prompt always asks for the whole listing, the known fields are replaced afterwards either way.
+    // A Gemini call on a resident worker is not interrupted when it loses, that would kill the worker.
+    private static final HedgedFormatter<FormatRequest> HEDGED_FORMATTER = ConfigLoader.isFormatterHedgingEnabled()
+            ? new HedgedFormatter<>(
+                    request -> Tools.formatMissingFieldsLocalGemini(request.rawText(), request.knownFields()),
+                    request -> Tools.formatListingLocal(request.rawText()),
+                    (request, fromPrimary, result) -> matchesSchema(result, fromPrimary ? request.knownFields() : Set.of()),
+                    ConfigLoader.getFormatterWorkerCommand().isEmpty(),
+                    ConfigLoader.getFormatterHedgePercentile(), ConfigLoader.getFormatterHedgeInitialDelay())
+            : null;
+
+    // Null unless the agent runs in batch mode
+    private final MicroBatcher<String, Map<String, Object>> batcher;
+
     public CustomLocalFormatterAgent(String name, String description) {
+        this(name, description, ConfigLoader.isFormatterBatchModeEnabled());
+    }
+
+    /**
+     * @param batchMode Whether listings formatted at the same time share one formatter call. The batch size is
+     *                  capped by both the item count and the token budget, so short listings go in bigger batches.
+     */
+    public CustomLocalFormatterAgent(String name, String description, boolean batchMode) {
         super(name, description, null,null,null);
+        this.batcher = batchMode
+                ? new MicroBatcher<>(name, Tools::formatListingsLocalGemini,
+                        ConfigLoader.getFormatterBatchMaxItems(),
+                        ConfigLoader.getFormatterBatchMaxTokens(),
+                        ConfigLoader.getFormatterBatchLinger())
+                : null;
+    }
+
+    /**
+     * @return How many listings should be formatted at the same time to make use of the batches.
+     */
+    public int batchSize() {
+        return batcher == null ? 1 : batcher.maxItems();
     }
 
     @Override
@@ -40,14 +98,7 @@ public class CustomLocalFormatterAgent extends BaseAgent {
             ));
         }
 
-        Map<String, Object> formattedResult = Tools.formatListingLocalGemini(rawText);
-        String formattedJsonString = "";
-        try {
-             formattedJsonString = OBJECT_MAPPER.writeValueAsString(formattedResult);
-        } catch (JsonProcessingException e) {
-            LOGGER.error("CRITICAL: Failed to serialize the result Map to a JSON string.");
-            throw new RuntimeException(e);
-        }
+        String formattedJsonString = format(rawText);
 
         // 5. Create a final event containing the result from the tool.
         Event finalEvent = Event.builder()
@@ -60,6 +111,91 @@ public class CustomLocalFormatterAgent extends BaseAgent {
         return Flowable.just(finalEvent);
     }
 
+    /**
+     * Formats the scraped text without going through the session state, so it can be called for several
+     * listings at the same time.
+     * @param rawText The scraped text of a single listing.
+     * @return The formatted listing as a JSON string.
+     */
+    public String format(String rawText) {
+        return format(rawText, Set.of());
+    }
+
+    /**
+     * Formats the scraped text, asking only for the fields that aren't known yet. The result leaves the known fields
+     * out (or holds the formatter's reading of them, in batch mode), the caller fills them in.
+     * @param knownFields The listing fields the caller already has and will put into the result itself.
+     * @return The formatted listing as a JSON string.
+     */
+    public String format(String rawText, Set<String> knownFields) {
+        // The same text asked for other fields gets another answer, so the asked fields are part of the key
+        String cacheKey = knownFields.isEmpty() ? rawText : rawText + "\n\nKnown fields: " + new TreeSet<>(knownFields);
+        // Reposted listings and retries come back with exactly the same text, there is no need to ask Gemini again.
+        Optional<String> cachedResult = FORMATTER_CACHE.lookup(cacheKey);
+        if (cachedResult.isPresent()) {
+            LOGGER.info("Formatter result served from cache. {}", FORMATTER_CACHE.describe());
+            return cachedResult.get();
+        }
+
+        // A batch shares one schema, so there every listing is asked for all of its fields
+        Map<String, Object> formattedResult = batcher == null ? formatAlone(rawText, knownFields) : formatInBatch(rawText);
+        String formattedJsonString;
+        try {
+            formattedJsonString = OBJECT_MAPPER.writeValueAsString(formattedResult);
+        } catch (JsonProcessingException e) {
+            LOGGER.error("CRITICAL: Failed to serialize the result Map to a JSON string.");
+            throw new RuntimeException(e);
+        }
+
+        // Only results that match the schema they were asked for are cached, a bad answer is asked again next time.
+        // A batch asks for every field.
+        Set<String> leftOut = batcher == null ? knownFields : Set.of();
+        if (!formattedResult.containsKey("error") && matchesSchema(formattedJsonString, leftOut)) {
+            FORMATTER_CACHE.store(cacheKey, formattedJsonString);
+        }
+        return formattedJsonString;
+    }
+
+    private static boolean matchesSchema(String formattedJsonString, Set<String> leftOut) {
+        return Boolean.TRUE.equals(Tools.validateFormatterResult(formattedJsonString, leftOut).get("isValid"));
+    }
+
+    private static boolean matchesSchema(Map<String, Object> formattedResult, Set<String> leftOut) {
+        try {
+            return matchesSchema(OBJECT_MAPPER.writeValueAsString(formattedResult), leftOut);
+        } catch (JsonProcessingException e) {
+            return false;
+        }
+    }
+
+    private static Map<String, Object> formatAlone(String rawText, Set<String> knownFields) {
+        return HEDGED_FORMATTER == null
+                ? Tools.formatMissingFieldsLocalGemini(rawText, knownFields)
+                : HEDGED_FORMATTER.format(new FormatRequest(rawText, knownFields));
+    }
+
+    private Map<String, Object> formatInBatch(String rawText) {
+        try {
+            return batcher.submit(rawText, PromptPreprocessor.estimateTokens(rawText));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Map.of("error", "Interrupted while waiting for the batch formatter");
+        } catch (ExecutionException e) {
+            return Map.of("error", "Batch formatter failed: " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * @return The batch statistics, or an empty string when the agent doesn't batch.
+     */
+    public String describeBatches() {
+        return batcher == null ? "" : batcher.describe();
+    }
+
+    public static String describeCache() {
+        return HEDGED_FORMATTER == null ? FORMATTER_CACHE.describe() : FORMATTER_CACHE.describe() + " " + HEDGED_FORMATTER.describe();
+    }
+
     @Override
     protected Flowable<Event> runLiveImpl(InvocationContext invocationContext) {
         return Flowable.error(new UnsupportedOperationException("runLive not implemented."));
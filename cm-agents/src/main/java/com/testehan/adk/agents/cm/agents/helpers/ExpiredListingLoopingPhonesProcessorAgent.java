@@ -1,25 +1,21 @@
 package com.testehan.adk.agents.cm.agents.helpers;
 
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.core.type.TypeReference;
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.adk.agents.BaseAgent;
 import com.google.adk.agents.InvocationContext;
 import com.google.adk.events.Event;
 import com.google.common.base.Strings;
+import com.testehan.adk.agents.cm.metrics.Metrics;
+import com.testehan.adk.agents.cm.tools.CasaMiaApiClient;
 import io.reactivex.rxjava3.core.BackpressureStrategy;
 import io.reactivex.rxjava3.core.Flowable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.net.URI;
 import java.net.URLEncoder;
-import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -30,7 +26,7 @@ public class ExpiredListingLoopingPhonesProcessorAgent extends BaseAgent {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ExpiredListingLoopingPhonesProcessorAgent.class);
 
-    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+    private static final String FLOW = "expired_listing";
 
     private final BaseAgent conversationAgent;
     private final BaseAgent nextReplyAgent;
@@ -50,34 +46,27 @@ public class ExpiredListingLoopingPhonesProcessorAgent extends BaseAgent {
     @Override
     protected Flowable<Event> runAsyncImpl(InvocationContext ctx) {
         // Step 1: Get the input from the previous agent
-        String jsonPhonesRaw = (String) ctx.session().state().get(OUTPUT_SCOUT_AGENT);
-        String jsonPhones = jsonPhonesRaw.replaceFirst("(?s)```json\\s*", "").replaceFirst("(?s)```\\s*$", "");
+        @SuppressWarnings("unchecked")
+        Iterable<Map<String, String>> pairs = (Iterable<Map<String, String>>) ctx.session().state().getOrDefault(OUTPUT_SCOUT_AGENT, List.of());
 
         return Flowable.create(emitter -> {
             try {
-                List<Map<String, String>> pairs = new ArrayList<>();
-                try {
-                    pairs = OBJECT_MAPPER.readValue(jsonPhones, new TypeReference<>() {});
-                } catch (JsonProcessingException e) {
-                    LOGGER.error("ExpiredListingLoopingPhonesProcessorAgent received invalid json array of phones to process. {}", jsonPhones);
-                }
-                LOGGER.info("ExpiredListingLoopingPhonesProcessorAgent received {} phones to process.", pairs.size());
+                LOGGER.info("ExpiredListingLoopingPhonesProcessorAgent processes the phones as they are read.");
 
-                HttpClient client = HttpClient.newHttpClient();
+                CasaMiaApiClient client = CasaMiaApiClient.shared();
 
                 int i = 0;
                 // Step 2: Loop through the phone numbers
                 for (Map<String, String> pair : pairs) {
                     i++;
+                    Metrics.counter("cm_phones_total", "Phone numbers handled by the WhatsApp flows, by flow.", "flow", FLOW).increment();
                     String phone = pair.get("phoneNumber");
                     String url = pair.get("url");
                     LOGGER.info("Phone number {} : ExpiredListingLoopingPhonesProcessorAgent is now processing phone: {}", i, phone);
 
                     String phoneEncoded = URLEncoder.encode(phone, StandardCharsets.UTF_8);
 
-                    HttpRequest request = HttpRequest.newBuilder()
-                            .uri(URI.create(getApiEndpointGetPhones() + "/" + phoneEncoded))
-                            .header("Authorization", getAuthenticationHeaderValue())
+                    HttpRequest request = client.authorizedRequest(getApiEndpointGetPhones() + "/" + phoneEncoded)
                             .build();
 
                     String conversation = "";
@@ -98,6 +87,7 @@ public class ExpiredListingLoopingPhonesProcessorAgent extends BaseAgent {
 
                     } catch (Exception e) {
                         LOGGER.error("An error occurred while calling the API", e);
+                        Metrics.recordError("casamia_api");
                         // TODO think what should happen in this case...i think that no new message should be sent to users in this case.
                         // obviously in this scenario the conversation is "" but we don't want the agent to think that he should see
                         // this as an empty conversation, and start with the initial conversations...rather an empty string..
@@ -110,7 +100,9 @@ public class ExpiredListingLoopingPhonesProcessorAgent extends BaseAgent {
                     if (!Strings.isNullOrEmpty(conversation)){
 
                         LOGGER.info("--- 🚀 RUNNING Conversation evaluation AGENT ---");
+                        long startNanos = System.nanoTime();
                         Event finalEvent = conversationAgent.runAsync(ctx).blockingLast();
+                        Metrics.recordLlmCall(CONVERSATION_AGENT, System.nanoTime() - startNanos, finalEvent != null);
                         String rawOutput = "";
                         // The final response from the agent is an Event. We can get the text directly from its content.
                         if (finalEvent != null && CONVERSATION_AGENT.equals(finalEvent.author())) {
@@ -141,7 +133,9 @@ public class ExpiredListingLoopingPhonesProcessorAgent extends BaseAgent {
                     } else if (userConsent.equalsIgnoreCase("undecided")){
 
                         LOGGER.info("--- 🚀 RUNNING Next Reply AGENT ---");
+                        long startNanos = System.nanoTime();
                         Event finalEvent = nextReplyAgent.runAsync(ctx).blockingLast();
+                        Metrics.recordLlmCall(NEXT_REPLY_AGENT, System.nanoTime() - startNanos, finalEvent != null);
                         String rawOutput = "";
                         if (finalEvent != null && NEXT_REPLY_AGENT.equals(finalEvent.author())) {
                             // The content() method on the Event gives us the payload.
@@ -164,17 +158,17 @@ public class ExpiredListingLoopingPhonesProcessorAgent extends BaseAgent {
 
             } catch (Exception e) {
                 LOGGER.error("An error occurred during the execution of the agent.", e);
+                Metrics.recordError(FLOW);
                 // If any exception occurs, propagate it through the stream.
                 emitter.onError(e);
             }
         }, BackpressureStrategy.BUFFER);
     }
 
-    private void reactivateListing(HttpClient client, String url) throws IOException, InterruptedException {
+    private void reactivateListing(CasaMiaApiClient client, String url) throws IOException, InterruptedException {
         HttpRequest request;
 
-        request = HttpRequest.newBuilder()
-                .uri(URI.create(url))
+        request = client.request(url)
                 .GET()
                 .header("Content-Type", "application/json")
                 .build();
@@ -183,23 +177,21 @@ public class ExpiredListingLoopingPhonesProcessorAgent extends BaseAgent {
         LOGGER.info("- Listing reactivation -> Response code: {}  Response body: {}", response.statusCode(), response.body());
     }
 
-    private static void updateLeadStatus(HttpClient client, String phone, String status) throws IOException, InterruptedException {
+    private static void updateLeadStatus(CasaMiaApiClient client, String phone, String status) throws IOException, InterruptedException {
         HttpRequest request;
         String phoneEncoded = URLEncoder.encode(phone, StandardCharsets.UTF_8);
         String statusEncoded = URLEncoder.encode(status, StandardCharsets.UTF_8);
 
-        request = HttpRequest.newBuilder()
-                .uri(URI.create(getApiEndpointPatchLeadStatus() + "?phoneNumber=" + phoneEncoded + "&status=" + statusEncoded))
+        request = client.authorizedRequest(getApiEndpointPatchLeadStatus() + "?phoneNumber=" + phoneEncoded + "&status=" + statusEncoded)
                 .method("PATCH", HttpRequest.BodyPublishers.noBody())
                 .header("Content-Type", "application/json")
-                .header("Authorization", getAuthenticationHeaderValue())
                 .build();
 
         HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
         LOGGER.info("- Lead status updated -> Response code: {}  Response body: {}", response.statusCode(), response.body());
     }
 
-    private static void postLeadReply(HttpClient client, String phoneNumber, String reply, Boolean isFirstMessage) throws IOException, InterruptedException {
+    private static void postLeadReply(CasaMiaApiClient client, String phoneNumber, String reply, Boolean isFirstMessage) throws IOException, InterruptedException {
 //        HttpRequest request;
 //        String phoneEncoded = URLEncoder.encode(phoneNumber, StandardCharsets.UTF_8);
 //        String replyEncoded = URLEncoder.encode(reply, StandardCharsets.UTF_8);
@@ -1,23 +1,43 @@
 package com.testehan.adk.agents.cm.agents.helpers;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.adk.agents.BaseAgent;
 import com.google.adk.agents.InvocationContext;
 import com.google.adk.events.Event;
 import com.google.adk.events.EventActions;
+import com.testehan.adk.agents.cm.config.ConfigLoader;
+import com.testehan.adk.agents.cm.metrics.Metrics;
+import com.testehan.adk.agents.cm.pipeline.PipelineStage;
+import com.testehan.adk.agents.cm.store.ListingFingerprints;
+import com.testehan.adk.agents.cm.store.ListingJournal;
+import com.testehan.adk.agents.cm.store.SeenUrlIndex;
 import com.testehan.adk.agents.cm.tools.HumanizedBrowsing;
-import io.reactivex.rxjava3.core.BackpressureStrategy;
+import com.testehan.adk.agents.cm.tools.PromptPreprocessor;
+import com.testehan.adk.agents.cm.tools.RuleBasedFieldExtractor;
+import com.testehan.adk.agents.cm.tools.StructuredDataExtractor;
+import com.testehan.adk.agents.cm.tools.Tools;
 import io.reactivex.rxjava3.core.Flowable;
+import io.reactivex.rxjava3.disposables.Disposable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
 
 import static com.testehan.adk.agents.cm.config.Constants.*;
 
@@ -26,10 +46,58 @@ public class LoopingUrlsProcessorAgent extends BaseAgent {
     private static final Logger LOGGER = LoggerFactory.getLogger(LoopingUrlsProcessorAgent.class);
 
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final long STATS_LOG_INTERVAL_SECONDS = 30;
+
+    static {
+        // Read from whichever stages are running when the metrics are scraped, the upload stage included
+        Metrics.gaugeFamily("cm_pipeline_queue_depth", "Items waiting in the queue of each running pipeline stage.", "stage",
+                () -> PipelineStage.runningStages().stream()
+                        .collect(Collectors.toMap(PipelineStage::name, PipelineStage::queueDepth, Integer::sum)));
+        Metrics.gaugeFamily("cm_pipeline_busy_workers", "Busy workers of each running pipeline stage.", "stage",
+                () -> PipelineStage.runningStages().stream()
+                        .collect(Collectors.toMap(PipelineStage::name, PipelineStage::busyWorkers, Integer::sum)));
+    }
+
     private final BaseAgent extractorAgent;
     private final BaseAgent formatterAgent;
+    private final ListingJournal journal;
+    // URLs processed in earlier runs are skipped before a browser is even borrowed, until their TTL runs out.
+    private final SeenUrlIndex seenUrlIndex;
+    private final int scrapeWorkers;
+    private final int formatWorkers;
+    private final int queueCapacity;
+    // Listings that come back after their seen-URL TTL are only scraped again when they changed. Null when disabled.
+    private final ListingFingerprints fingerprints = ConfigLoader.isListingFingerprintEnabled()
+            ? ListingFingerprints.open(ConfigLoader.getDataDirectory().resolve("fingerprints"), ConfigLoader.getListingFingerprintTtl())
+            : null;
+    private final HumanizedBrowsing humanizedBrowsing = new HumanizedBrowsing(fingerprints);
+    private final PromptPreprocessor promptPreprocessor = new PromptPreprocessor(ConfigLoader.getFormatterPromptMaxTokens());
+    private final LongAdder preparedListings = new LongAdder();
+    private final LongAdder rawPromptTokens = new LongAdder();
+    private final LongAdder preparedPromptTokens = new LongAdder();
+    // Null when the rules are disabled
+    private final RuleBasedFieldExtractor ruleBasedFieldExtractor =
+            ConfigLoader.isRuleBasedFieldsEnabled() ? new RuleBasedFieldExtractor() : null;
+    private final LongAdder ruleFilledFields = new LongAdder();
+    private final LongAdder knownFieldCount = new LongAdder();
+
+    // Agents other than CustomLocalFormatterAgent read their input from the session state, so only one URL at a time can use them.
+    private final Object sessionStateLock = new Object();
+
+    /**
+     * @param journal Where each URL's completed stages are recorded, so an interrupted run can be resumed.
+     * @param seenUrlIndex The URLs to skip; they are marked as processed by the upload, once they are in its outbox.
+     */
+    public LoopingUrlsProcessorAgent(BaseAgent extractorAgent, BaseAgent formatterAgent, ListingJournal journal, SeenUrlIndex seenUrlIndex) {
+        this(extractorAgent, formatterAgent, journal, seenUrlIndex,
+                ConfigLoader.getListingProcessorMaxConcurrency(),
+                ConfigLoader.getListingPipelineFormatWorkers(),
+                ConfigLoader.getListingPipelineQueueCapacity());
+    }
 
-    public LoopingUrlsProcessorAgent(BaseAgent extractorAgent, BaseAgent formatterAgent) {
+    public LoopingUrlsProcessorAgent(BaseAgent extractorAgent, BaseAgent formatterAgent, ListingJournal journal,
+                                     SeenUrlIndex seenUrlIndex, int scrapeWorkers, int formatWorkers, int queueCapacity) {
         super(
                 "looping_urls_processor_agent",
                 "A deterministic agent that receives a list of URLs, loops through them, and calls an extractor and formatter for each.",
@@ -39,101 +107,386 @@ public class LoopingUrlsProcessorAgent extends BaseAgent {
         );
         this.extractorAgent = extractorAgent;
         this.formatterAgent = formatterAgent;
+        this.journal = journal;
+        this.seenUrlIndex = seenUrlIndex;
+        this.scrapeWorkers = Math.max(1, scrapeWorkers);
+        // A batching formatter needs as many listings in flight as go into one batch
+        int batchSize = formatterAgent instanceof CustomLocalFormatterAgent localFormatterAgent ? localFormatterAgent.batchSize() : 1;
+        this.formatWorkers = Math.max(batchSize, formatWorkers);
+        this.queueCapacity = Math.max(1, queueCapacity);
     }
 
     /**
      * This is the heart of the custom agent, built according to the official ADK documentation.
+     * The URLs go through two pipeline stages, scrape and format, connected by bounded queues and each with its own
+     * number of workers. The formatted listings are emitted as they become available; the stream is only pulled as
+     * fast as the consumer (the upload) keeps up, and that backpressure travels back through the queues to the browser.
+     * URLs that an earlier, interrupted run already scraped or formatted skip the stages they completed.
      * @param ctx The InvocationContext provides access to the session, runner, and input from the previous agent.
-     * @return A Flowable stream of events, culminating in a single Content event with the final aggregated result.
+     * @return A Flowable stream of events, one state-delta event for each successfully processed URL.
      */
     @Override
     protected Flowable<Event> runAsyncImpl(InvocationContext ctx) {
-        // Step 1: Get the input from the previous agent
-        String jsonUrlsOutput = (String) ctx.session().state().get(OUTPUT_SCOUT_AGENT);
-        final String jsonUrls = jsonUrlsOutput.replaceFirst("(?s)```json\\s*", "").replaceFirst("(?s)```\\s*$", "");
+        return Flowable.defer(() -> {
+            // Start the standby browsers while the URL list is being read
+            HumanizedBrowsing.warmUp();
 
-        return Flowable.create(emitter -> {
-            try {
-                List<String> urlsToProcess = new ArrayList<>();
+            // Step 1: Get the input from the previous agent
+            @SuppressWarnings("unchecked")
+            final Iterable<String> urls = (Iterable<String>) ctx.session().state().getOrDefault(OUTPUT_SCOUT_AGENT, List.of());
+            LOGGER.info("LoopingProcessorAgent processes the URLs as they are read, with {} scrape and {} format workers.",
+                    scrapeWorkers, formatWorkers);
+
+            // Step 2: Build the pipeline. An empty Optional marks the end of the results.
+            final BlockingQueue<Optional<Event>> results = new ArrayBlockingQueue<>(queueCapacity);
+
+            PipelineStage<String, ScrapedListing> scrapeStage =
+                    new PipelineStage<>("scrape", queueCapacity, scrapeWorkers, this::scrape);
+            // Cheap CPU work, one worker keeps up with any number of browsers
+            PipelineStage<ScrapedListing, ScrapedListing> prepareStage =
+                    new PipelineStage<>("prepare", queueCapacity, 1, this::prepare);
+            PipelineStage<ScrapedListing, Event> formatStage =
+                    new PipelineStage<>("format", queueCapacity, formatWorkers, scraped -> format(ctx, scraped));
+            scrapeStage.then(prepareStage).then(formatStage)
+                    .to(event -> results.put(Optional.of(event)))
+                    .onFinished(() -> {
+                        try {
+                            results.put(Optional.empty());
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                    });
+            formatStage.start();
+            prepareStage.start();
+            scrapeStage.start();
+
+            // Step 3: Feed the URLs from a separate thread, submit blocks whenever the scrape queue is full.
+            final AtomicInteger skippedUrls = new AtomicInteger();
+            final AtomicInteger resumedUrls = new AtomicInteger();
+            final AtomicInteger receivedUrls = new AtomicInteger();
+            Thread feeder = Thread.ofVirtual().name("scrape-feeder").start(() -> {
                 try {
-                    urlsToProcess = OBJECT_MAPPER.readValue(jsonUrls, List.class);
-                } catch (JsonProcessingException e) {
-                    LOGGER.error("LoopingProcessorAgent received invalid json array of URLs to process. {}", jsonUrls);
+                    for (String url : urls) {
+                        receivedUrls.incrementAndGet();
+                        // Checked first: a URL formatted just before a crash is already in the seen-URL index
+                        if (resume(url, prepareStage, results)) {
+                            resumedUrls.incrementAndGet();
+                            countListing("resumed");
+                            continue;
+                        }
+                        if (seenUrlIndex.isFresh(url)) {
+                            skippedUrls.incrementAndGet();
+                            countListing("skipped");
+                            continue;
+                        }
+                        scrapeStage.submit(url);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    scrapeStage.finish();
+                    LOGGER.info("Seen-URL index: skipped {} already processed URLs, resumed {} URLs from the journal, sent {} URLs to processing.",
+                            skippedUrls.get(), resumedUrls.get(), receivedUrls.get() - skippedUrls.get() - resumedUrls.get());
                 }
-                LOGGER.info("LoopingProcessorAgent received {} URLs to process.", urlsToProcess.size());
+            });
 
-                // Step 2: Loop through the URLs
-                for (String url : urlsToProcess) {
-                    LOGGER.info("LoopingProcessorAgent is now processing URL: {}", url);
+            Disposable statsReporter = Flowable.interval(STATS_LOG_INTERVAL_SECONDS, TimeUnit.SECONDS)
+                    .subscribe(tick -> LOGGER.info("Pipeline progress: {} {}", PipelineStage.describeRunningStages(), HumanizedBrowsing.describeDomainThrottles()));
 
-                    ctx.session().state().put(AGENT_VAR_LISTING_URL_INITIAL_SOURCE,url);
+            final long startNanos = System.nanoTime();
 
-                    // --- RUN THE FIRST AGENT ---
-                    LOGGER.info("--- 🚀 RUNNING SCRAPER AGENT ---");
-                    // i abandoned investigathing why the line from below gets stuck in a loop...so i just call the tool directly
-                    // to get the content of the page.
-        //            extractorAgent.runAsync(ctx).blockingForEach(event -> System.out.println("SCRAPER EVENT: " + event.toJson()));
-                    HumanizedBrowsing humanizedBrowsing = new HumanizedBrowsing();
-                    Map<String, Object> scraperOutput =  humanizedBrowsing.browseUrl(url);
+            // Step 4: Emit the results. generate is only called when downstream asks for another event.
+            return Flowable.<Event>generate(emitter -> {
+                        Optional<Event> next = results.take();
+                        if (next.isPresent()) {
+                            emitter.onNext(next.get());
+                        } else {
+                            emitter.onComplete();
+                        }
+                    })
+                    .doOnComplete(() -> {
+                        double elapsedMinutes = (System.nanoTime() - startNanos) / 60_000_000_000.0;
+                        LOGGER.info("LoopingProcessorAgent has finished. Processed {} URLs, resumed {} and skipped {} already processed ones in {} s ({} URLs/minute). {} {} {} {} {} {} {} {} {} \n",
+                                formatStage.processedItems(), resumedUrls.get(), skippedUrls.get(), (System.nanoTime() - startNanos) / 1_000_000_000L,
+                                String.format("%.2f", elapsedMinutes > 0 ? formatStage.processedItems() / elapsedMinutes : 0),
+                                scrapeStage.describe(), prepareStage.describe(), formatStage.describe(), describePromptSizes(), HumanizedBrowsing.describeDriverPool(), HumanizedBrowsing.describeFetchModes(), HumanizedBrowsing.describePageWaits(), HumanizedBrowsing.describeDomainThrottles(), HumanizedBrowsing.describeFingerprints());
+                        if (formatterAgent instanceof CustomLocalFormatterAgent) {
+                            LOGGER.info("Formatter cache after this run: {} {}", CustomLocalFormatterAgent.describeCache(),
+                                    ((CustomLocalFormatterAgent) formatterAgent).describeBatches());
+                        }
+                    })
+                    .doOnCancel(() -> {
+                        feeder.interrupt();
+                        scrapeStage.abort();
+                        prepareStage.abort();
+                        formatStage.abort();
+                    })
+                    .doOnError(e -> LOGGER.error("An error occurred during the execution of the agent.", e))
+                    .doFinally(statsReporter::dispose);
+        });
+    }
 
-                    // The result of the first agent is now in the context under "scraper_output"
-                    String scraperOutputString = scraperOutput.get("extractedData").toString();
-                    LOGGER.info("\n--- ✅ SCRAPER FINISHED. Raw output: ---\n {}", scraperOutputString);
+    /**
+     * Continues a URL from the last stage the journal has for it: a formatted listing goes straight to the results,
+     * scraped text goes to the prepare stage.
+     * @return false when there is nothing to resume and the URL has to be scraped.
+     */
+    private boolean resume(String url, PipelineStage<ScrapedListing, ?> prepareStage, BlockingQueue<Optional<Event>> results) throws InterruptedException {
+        Optional<ListingJournal.Entry> entry = journal.lastCompleted(url);
+        if (entry.isEmpty()) {
+            return false;
+        }
+        Map<String, Object> payload = entry.get().payload();
+        LOGGER.info("Resuming {} after its {} stage from the journal.", url, entry.get().stage());
+        switch (entry.get().stage()) {
+            case FORMATTED -> {
+                // Only validated listings are journaled, but a journal from an older run may still hold an error
+                String listing = (String) payload.get("listing");
+                if (!isValidListing(listing)) {
+                    LOGGER.info("The journaled listing of {} is not valid, scraping it again.", url);
+                    return false;
+                }
+                results.put(Optional.of(listingEvent(url, listing)));
+            }
+            case SCRAPED -> {
+                @SuppressWarnings("unchecked")
+                Map<String, Object> structuredData = (Map<String, Object>) payload.getOrDefault("structuredData", Map.of());
+                // The fingerprint isn't journaled, the listing is scraped in full next time it comes back
+                prepareStage.submit(new ScrapedListing(url, (String) payload.get("scrapedText"), structuredData, null));
+            }
+            default -> {
+                return false;
+            }
+        }
+        return true;
+    }
 
-                    // --- RUN THE SECOND AGENT ---
-                    // Pass the extractor's output as the input for the formatter agent
-                    ctx.session().state().put(AGENT_VAR_LISTING_SCRAPED_TEXT, scraperOutputString);
+    /**
+     * Scrapes a single URL.
+     * @return The scraped listing, or null when the page could not be scraped.
+     */
+    private ScrapedListing scrape(String url) {
+        LOGGER.info("LoopingProcessorAgent is now processing URL: {}", url);
 
-                    LOGGER.info("\n--- 🚀 RUNNING FORMATTER AGENT ---");
-                    Event finalEvent = formatterAgent.runAsync(ctx).blockingLast();
+        // --- RUN THE FIRST AGENT ---
+        LOGGER.info("--- 🚀 RUNNING SCRAPER AGENT ---");
+        // i abandoned investigathing why the line from below gets stuck in a loop...so i just call the tool directly
+        // to get the content of the page.
+//        extractorAgent.runAsync(ctx).blockingForEach(event -> System.out.println("SCRAPER EVENT: " + event.toJson()));
+        Map<String, Object> scraperOutput = humanizedBrowsing.browseUrl(url);
+        if ("unchanged".equals(scraperOutput.get("status"))) {
+            // Nothing to format or upload, the listing stays skipped for another seen-URL TTL
+            seenUrlIndex.markProcessed(url);
+            countListing("unchanged");
+            return null;
+        }
+        if (!"success".equals(scraperOutput.get("status"))) {
+            // Not marked as seen, so the URL is tried again in the next run
+            LOGGER.warn("Scraping {} failed, skipping it: {}", url, scraperOutput.get("message"));
+            countListing("scrape_failed");
+            return null;
+        }
 
-                    LOGGER.info("FORMATTER FINAL EVENT: \n {}", finalEvent.toJson());
+        String scraperOutputString = scraperOutput.get("extractedData").toString();
+        LOGGER.info("\n--- ✅ SCRAPER FINISHED. Raw output: ---\n {}", scraperOutputString);
+        @SuppressWarnings("unchecked")
+        Map<String, Object> structuredData = (Map<String, Object>) scraperOutput.getOrDefault("structuredData", Map.of());
+        journal.record(url, ListingJournal.Stage.SCRAPED, Map.of("scrapedText", scraperOutputString, "structuredData", structuredData));
+        return new ScrapedListing(url, scraperOutputString, structuredData,
+                (ListingFingerprints.Fingerprint) scraperOutput.get("fingerprint"));
+    }
 
-                    String rawOutput = "";
-                    // The final response from the agent is an Event. We can get the text directly from its content.
-                    if (finalEvent != null && CUSTOM_LOCAL_FORMATTER_AGENT.equals(finalEvent.author())) { // TODO HERE USE FORMATTER_AGENT if you want to use online LLM
-                        // The content() method on the Event gives us the payload.
-                        // The text() method on Content concatenates all parts into a single string.
-                        rawOutput = finalEvent.content().get().text();
-                    }
+    /**
+     * Shrinks the scraped text for the formatter prompt. The image URLs taken out of the text are put back into the
+     * listing after formatting, unless the page data already had them, and the fields the rules can read from the
+     * text are added to the ones read from the page data, so the formatter doesn't have to produce them.
+     */
+    private ScrapedListing prepare(ScrapedListing scraped) {
+        PromptPreprocessor.PreparedText prepared = promptPreprocessor.prepare(scraped.scrapedText());
+        preparedListings.increment();
+        rawPromptTokens.add(prepared.originalTokens());
+        preparedPromptTokens.add(prepared.estimatedTokens());
+        LOGGER.info("Prompt text for {} shrunk from ~{} to ~{} tokens, {} image URLs moved out of the prompt.",
+                scraped.url(), prepared.originalTokens(), prepared.estimatedTokens(), prepared.imageUrls().size());
 
-                    // **CRITICAL STEP**: Clean the LLM output to get pure JSON.
-                    // This removes the "```json" at the start and the "```" at the end.
-                    // The (?s) flag allows '.' to match newline characters.
-                    String resultJson = rawOutput.replaceFirst("(?s)```json\\s*", "").replaceFirst("(?s)```\\s*$", "");
+        Map<String, Object> structuredData = new HashMap<>(scraped.structuredData());
+        if (!prepared.imageUrls().isEmpty()) {
+            structuredData.putIfAbsent("imageUrls", prepared.imageUrls());
+        }
+        if (ruleBasedFieldExtractor != null) {
+            addRuleBasedFields(scraped.url(), prepared.text(), structuredData);
+        }
+        knownFieldCount.add(knownFields(structuredData).size());
+        return new ScrapedListing(scraped.url(), prepared.text(), structuredData, scraped.fingerprint());
+    }
 
+    /**
+     * The page data wins over the rules; the rules only fill in what it is missing. The city is spelled the way the
+     * backend knows it, whichever source it came from.
+     */
+    private void addRuleBasedFields(String url, String text, Map<String, Object> structuredData) {
+        if (structuredData.get("city") instanceof String city) {
+            RuleBasedFieldExtractor.canonicalCity(city).ifPresent(canonical -> structuredData.put("city", canonical));
+        }
+        int filled = 0;
+        for (Map.Entry<String, Object> field : ruleBasedFieldExtractor.extract(text).entrySet()) {
+            if (structuredData.putIfAbsent(field.getKey(), field.getValue()) == null) {
+                filled++;
+            }
+        }
+        ruleFilledFields.add(filled);
+        LOGGER.info("Rules filled {} fields for {}, the formatter is asked for everything but {}.",
+                filled, url, knownFields(structuredData));
+    }
 
-                    if (Objects.nonNull(resultJson) && !resultJson.trim().isEmpty()) {
-                        LOGGER.info("Successfully extracted data for URL: {}", url);
-                        ConcurrentMap<String, Object> stateUpdate = new ConcurrentHashMap<>();
+    /**
+     * @return The trusted fields that are known, which the formatter doesn't need to produce.
+     */
+    private static Set<String> knownFields(Map<String, Object> structuredData) {
+        Set<String> known = new LinkedHashSet<>(StructuredDataExtractor.TRUSTED_FIELDS);
+        known.retainAll(structuredData.keySet());
+        return known;
+    }
 
-                        stateUpdate.put(OUTPUT_MASTER_ORCHESTRATOR_LISTING, resultJson);
-                        stateUpdate.put(OUTPUT_MASTER_ORCHESTRATOR_URL, url);
+    private String describePromptSizes() {
+        long listings = preparedListings.sum();
+        return listings == 0 ? "PromptSizes[none]" : String.format("PromptSizes[listings=%d, avgRawTokens=%d, avgPreparedTokens=%d, avgKnownFields=%.1f, ruleFilledFields=%d]",
+                listings, rawPromptTokens.sum() / listings, preparedPromptTokens.sum() / listings,
+                (double) knownFieldCount.sum() / listings, ruleFilledFields.sum());
+    }
 
-                        // Build the event carrying this single result.
-                        Event resultEvent = Event.builder()
-                                .author(this.name())
-                                .actions(EventActions.builder().stateDelta(stateUpdate).build())
-                                .build();
+    /**
+     * Formats a single scraped listing.
+     * @return The state-delta event carrying the result, or null when nothing valid was extracted.
+     */
+    private Event format(InvocationContext ctx, ScrapedListing scraped) {
+        // --- RUN THE SECOND AGENT ---
+        LOGGER.info("\n--- 🚀 RUNNING FORMATTER AGENT ---");
+        String rawOutput = runFormatter(ctx, scraped.url(), scraped.scrapedText(), knownFields(scraped.structuredData()));
 
-                        // Emit the event to the Flowable stream.
-                        emitter.onNext(resultEvent);
+        // **CRITICAL STEP**: Clean the LLM output to get pure JSON.
+        // This removes the "```json" at the start and the "```" at the end.
+        // The (?s) flag allows '.' to match newline characters.
+        // A formatter that produced nothing at all fails the validation below
+        String resultJson = rawOutput == null ? null
+                : withTrustedFields(rawOutput.replaceFirst("(?s)```json\\s*", "").replaceFirst("(?s)```\\s*$", ""), scraped.structuredData());
 
-                    } else {
-                        LOGGER.warn("Extractor returned no valid result {} for URL: {}", resultJson, url);
-                    }
-                }
+        // An error or a listing the backend would reject must not reach the outbox, where it would mark the URL as
+        // processed without ever being uploaded
+        if (!isValidListing(resultJson)) {
+            LOGGER.warn("Extractor returned no valid result {} for URL: {}", resultJson, scraped.url());
+            countListing("format_failed");
+            Metrics.recordError("format");
+            return null;
+        }
+
+        LOGGER.info("Successfully extracted data for URL: {}", scraped.url());
+        // Journaled only now, so a resume never replays a failed result as a listing
+        journal.record(scraped.url(), ListingJournal.Stage.FORMATTED, Map.of("listing", resultJson));
+        // Same for the fingerprint: a page whose result failed must be formatted again, not probed as unchanged
+        if (fingerprints != null && scraped.fingerprint() != null) {
+            fingerprints.record(scraped.url(), scraped.fingerprint());
+        }
+        countListing("formatted");
+        return listingEvent(scraped.url(), resultJson);
+    }
+
+    /**
+     * @return Whether the formatted listing is a JSON object without an error that matches the listing schema.
+     */
+    private static boolean isValidListing(String resultJson) {
+        if (resultJson == null || resultJson.isBlank()) {
+            return false;
+        }
+        try {
+            if (!(OBJECT_MAPPER.readTree(resultJson) instanceof ObjectNode listing) || listing.has("error")) {
+                return false;
+            }
+        } catch (JsonProcessingException e) {
+            return false;
+        }
+        return Boolean.TRUE.equals(Tools.validateFormatterResult(resultJson, Set.of()).get("isValid"));
+    }
+
+    private static void countListing(String outcome) {
+        Metrics.counter("cm_listings_total", "Listing URLs handled by the listing flow, by outcome.", "outcome", outcome).increment();
+    }
+
+    private Event listingEvent(String url, String listingJson) {
+        ConcurrentMap<String, Object> stateUpdate = new ConcurrentHashMap<>();
+
+        stateUpdate.put(OUTPUT_MASTER_ORCHESTRATOR_LISTING, listingJson);
+        stateUpdate.put(OUTPUT_MASTER_ORCHESTRATOR_URL, url);
+
+        // Build the event carrying this single result.
+        return Event.builder()
+                .author(this.name())
+                .actions(EventActions.builder().stateDelta(stateUpdate).build())
+                .build();
+    }
 
-                LOGGER.info("LoopingProcessorAgent has finished. Final output created. \n");
-                // After the loop has finished successfully, signal completion of the stream.
-                emitter.onComplete();
+    /**
+     * @param knownFields The fields that will be filled in from the page data, so the local formatter doesn't need
+     *                    to produce them. Other formatter agents always produce the whole listing.
+     * @return The formatter's output, or null when the formatter agent emitted no event at all.
+     */
+    private String runFormatter(InvocationContext ctx, String url, String scrapedText, Set<String> knownFields) {
+        if (formatterAgent instanceof CustomLocalFormatterAgent localFormatterAgent) {
+            return localFormatterAgent.format(scrapedText, knownFields);
+        }
 
-            } catch (Exception e) {
-                LOGGER.error("An error occurred during the execution of the agent.", e);
-                // If any exception occurs, propagate it through the stream.
-                emitter.onError(e);
+        synchronized (sessionStateLock) {
+            // Pass the extractor's output as the input for the formatter agent
+            ctx.session().state().put(AGENT_VAR_LISTING_URL_INITIAL_SOURCE, url);
+            ctx.session().state().put(AGENT_VAR_LISTING_SCRAPED_TEXT, scrapedText);
+
+            long startNanos = System.nanoTime();
+            Event finalEvent = formatterAgent.runAsync(ctx).lastElement().blockingGet();
+            Metrics.recordLlmCall(formatterAgent.name(), System.nanoTime() - startNanos, finalEvent != null);
+            if (finalEvent == null) {
+                LOGGER.warn("Formatter agent {} finished without an event for {}.", formatterAgent.name(), url);
+                return null;
             }
-        }, BackpressureStrategy.BUFFER);
+            LOGGER.info("FORMATTER FINAL EVENT: \n {}", finalEvent.toJson());
+
+            // The final response from the agent is an Event. We can get the text directly from its content.
+            if (formatterAgent.name().equals(finalEvent.author()) && finalEvent.content().isPresent()) {
+                // The text() method on Content concatenates all parts into a single string.
+                return finalEvent.content().get().text();
+            }
+            return "";
+        }
+    }
+
+    /**
+     * The city, numbers, owner and images read from the page's embedded data or by the rules are exact, so they
+     * replace whatever the formatter made of the text, or fill in what it wasn't asked for. Output that isn't a JSON object is left alone for the validation further on.
+     */
+    private static String withTrustedFields(String resultJson, Map<String, Object> structuredData) {
+        if (structuredData.isEmpty() || resultJson.isBlank()) {
+            return resultJson;
+        }
+        try {
+            JsonNode result = OBJECT_MAPPER.readTree(resultJson);
+            if (!(result instanceof ObjectNode listing) || listing.has("error")) {
+                return resultJson;
+            }
+            for (String field : StructuredDataExtractor.TRUSTED_FIELDS) {
+                if (structuredData.containsKey(field)) {
+                    listing.set(field, OBJECT_MAPPER.valueToTree(structuredData.get(field)));
+                }
+            }
+            return OBJECT_MAPPER.writeValueAsString(listing);
+        } catch (JsonProcessingException e) {
+            return resultJson;
+        }
+    }
+
+    /**
+     * @param fingerprint What the page looked like when it was scraped, or null when it can't be told.
+     */
+    private record ScrapedListing(String url, String scrapedText, Map<String, Object> structuredData,
+                                  ListingFingerprints.Fingerprint fingerprint) {
     }
 
     @Override
@@ -2,13 +2,18 @@ package com.testehan.adk.agents.cm.config;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
+import java.util.stream.Collectors;
 
 public class ConfigLoader {
 
     private static final String SECRETS_PROPERTIES_FILE = "secrets.properties";
     private static final Properties PROPERTIES = new Properties();
 
+    private static volatile String authenticationHeaderValue;
+
     static {
         try (InputStream input = ConfigLoader.class.getClassLoader().getResourceAsStream(SECRETS_PROPERTIES_FILE)) {
             if (input == null) {
@@ -61,11 +66,330 @@ public class ConfigLoader {
     }
 
 
+    public static int getListingProcessorMaxConcurrency() {
+        return getIntProperty("listing.processor.max.concurrency", 1);
+    }
+
+    public static int getListingPipelineFormatWorkers() {
+        return getIntProperty("listing.pipeline.format.workers", 1);
+    }
+
+    public static int getListingPipelineUploadWorkers() {
+        return getIntProperty("listing.pipeline.upload.workers", 1);
+    }
+
+    public static int getListingPipelineQueueCapacity() {
+        return getIntProperty("listing.pipeline.queue.capacity", 10);
+    }
+
+    public static int getWebDriverPoolMaxSize() {
+        return getIntProperty("webdriver.pool.max.size", getListingProcessorMaxConcurrency());
+    }
+
+    public static int getWebDriverPoolMinIdle() {
+        return getIntProperty("webdriver.pool.min.idle", 1);
+    }
+
+    public static int getWebDriverPoolMaxPagesPerSession() {
+        return getIntProperty("webdriver.pool.max.pages.per.session", 50);
+    }
+
+    public static int getWebDriverPoolMaxJsHeapMb() {
+        return getIntProperty("webdriver.pool.max.js.heap.mb", 512);
+    }
+
+    public static Path getDataDirectory() {
+        return Path.of(PROPERTIES.getProperty("data.directory", "data"));
+    }
+
+    public static Duration getSeenUrlTtl() {
+        return Duration.ofHours(getIntProperty("seen.url.ttl.hours", 168));
+    }
+
+    /**
+     * Whether a listing that comes back after its seen-URL TTL is first probed over HTTP and only scraped when it changed.
+     */
+    public static boolean isListingFingerprintEnabled() {
+        return Boolean.parseBoolean(PROPERTIES.getProperty("listing.fingerprint.enabled", "true"));
+    }
+
+    /**
+     * How long a listing fingerprint is trusted; after that the listing is scraped in full again. Should be longer
+     * than the seen-URL TTL, or the listings are never probed.
+     */
+    public static Duration getListingFingerprintTtl() {
+        return Duration.ofDays(getIntProperty("listing.fingerprint.ttl.days", 30));
+    }
+
+    public static long getSeenUrlBloomBits() {
+        return getIntProperty("seen.url.bloom.bits", 8 * 1024 * 1024);
+    }
+
+    public static int getFormatterCacheMemoryEntries() {
+        return getIntProperty("formatter.cache.memory.entries", 1000);
+    }
+
+    public static long getFormatterCacheSegmentBytes() {
+        return getIntProperty("formatter.cache.segment.mb", 16) * 1024L * 1024L;
+    }
+
+    /**
+     * How much disk the formatter cache may use; the oldest segments are deleted beyond that.
+     */
+    public static long getFormatterCacheMaxBytes() {
+        return getIntProperty("formatter.cache.max.mb", 256) * 1024L * 1024L;
+    }
+
+    /**
+     * How long a formatter cache segment is kept after it was last written to.
+     */
+    public static Duration getFormatterCacheTtl() {
+        return Duration.ofDays(getIntProperty("formatter.cache.ttl.days", 30));
+    }
+
+    /**
+     * How long a stage recorded in the listing journal can be resumed from; older entries are scraped again.
+     */
+    public static Duration getListingJournalTtl() {
+        return Duration.ofHours(getIntProperty("listing.journal.ttl.hours", 24));
+    }
+
+    public static long getListingJournalSegmentBytes() {
+        return getIntProperty("listing.journal.segment.mb", 16) * 1024L * 1024L;
+    }
+
+    public static double getUploadRatePerMinute() {
+        return Double.parseDouble(PROPERTIES.getProperty("upload.rate.per.minute", "6"));
+    }
+
+    public static int getUploadRateBurst() {
+        return getIntProperty("upload.rate.burst", 1);
+    }
+
+    public static int getUploadMaxAttempts() {
+        return getIntProperty("upload.max.attempts", 5);
+    }
+
+    public static Duration getUploadInitialBackoff() {
+        return Duration.ofSeconds(getIntProperty("upload.retry.initial.backoff.seconds", 10));
+    }
+
+    public static Duration getImageDownloadConnectTimeout() {
+        return Duration.ofSeconds(getIntProperty("image.download.connect.timeout.seconds", 5));
+    }
+
+    public static Duration getImageDownloadRequestTimeout() {
+        return Duration.ofSeconds(getIntProperty("image.download.request.timeout.seconds", 20));
+    }
+
+    public static int getImageDownloadPerHostConcurrency() {
+        return getIntProperty("image.download.per.host.concurrency", 4);
+    }
+
+    public static int getImageDownloadMaxBytes() {
+        return getIntProperty("image.download.max.mb", 10) * 1024 * 1024;
+    }
+
+    /**
+     * Command of a long-lived formatter worker speaking line-delimited JSON. The one that ships is
+     * "node workers/gemini-worker.js", see that file for its setup. When empty, the Gemini CLI is started once per
+     * listing.
+     */
+    public static List<String> getFormatterWorkerCommand() {
+        String command = PROPERTIES.getProperty("formatter.worker.command", "").trim();
+        return command.isEmpty() ? List.of() : List.of(command.split("\\s+"));
+    }
+
+    public static int getFormatterWorkerCount() {
+        return getIntProperty("formatter.worker.count", 2);
+    }
+
+    /**
+     * Token budget for the scraped text in the formatter prompt; 0 disables the cut.
+     */
+    public static int getFormatterPromptMaxTokens() {
+        return getIntProperty("formatter.prompt.max.tokens", 3000);
+    }
+
+    public static Duration getFormatterTimeout() {
+        return Duration.ofSeconds(getIntProperty("formatter.timeout.seconds", 180));
+    }
+
+    public static Duration getApiConnectTimeout() {
+        return Duration.ofSeconds(getIntProperty("api.connect.timeout.seconds", 10));
+    }
+
+    public static Duration getApiRequestTimeout() {
+        return Duration.ofSeconds(getIntProperty("api.request.timeout.seconds", 30));
+    }
+
+    /**
+     * Read timeout of a listing upload, which sends up to 20 images in one multipart request.
+     */
+    public static Duration getApiUploadTimeout() {
+        return Duration.ofSeconds(getIntProperty("api.upload.timeout.seconds", 300));
+    }
+
+    /**
+     * Items per page when reading lists from the CasaMia API; 0 reads the whole list in one request.
+     */
+    public static int getApiPageSize() {
+        return getIntProperty("api.page.size", 0);
+    }
+
+    /**
+     * The most pages read from one endpoint, in case the backend ignores the paging parameters.
+     */
+    public static int getApiMaxPages() {
+        return getIntProperty("api.max.pages", 1000);
+    }
+
+    /**
+     * Whether listing pages of supported sites are first fetched with a plain HTTP request instead of Chrome.
+     */
+    public static boolean isHttpFetchModeEnabled() {
+        return Boolean.parseBoolean(PROPERTIES.getProperty("scrape.http.mode.enabled", "true"));
+    }
+
+    public static Duration getHttpFetchTimeout() {
+        // ScraperAPI may retry a page on its side, so this is a lot more than a direct request needs
+        return Duration.ofSeconds(getIntProperty("scrape.http.timeout.seconds", 70));
+    }
+
+    /**
+     * The highest page rate per site; the scraper starts here and backs off towards the minimum when the site struggles.
+     */
+    public static double getScrapeMaxPagesPerMinute() {
+        return Double.parseDouble(PROPERTIES.getProperty("scrape.domain.max.pages.per.minute", "30"));
+    }
+
+    public static double getScrapeMinPagesPerMinute() {
+        return Double.parseDouble(PROPERTIES.getProperty("scrape.domain.min.pages.per.minute", "2"));
+    }
+
+    public static int getScrapeRateBurst() {
+        return getIntProperty("scrape.domain.rate.burst", 2);
+    }
+
+    /**
+     * Pages slower than this count as a sign the site, or the proxy, is struggling.
+     */
+    public static Duration getScrapeSlowPageThreshold() {
+        return Duration.ofSeconds(getIntProperty("scrape.domain.slow.page.seconds", 45));
+    }
+
+    public static int getScrapeCircuitFailureThreshold() {
+        return getIntProperty("scrape.circuit.failure.threshold", 5);
+    }
+
+    public static Duration getScrapeCircuitOpenDuration() {
+        return Duration.ofSeconds(getIntProperty("scrape.circuit.open.seconds", 300));
+    }
+
+    /**
+     * The sites (hosts) whose browser pages wait on readiness signals under one deadline, instead of scrolling like a human.
+     */
+    public static Set<String> getFastModeDomains() {
+        return Arrays.stream(PROPERTIES.getProperty("scrape.fast.mode.domains", "www.olx.ro,www.publi24.ro").split(","))
+                .map(String::trim)
+                .filter(domain -> !domain.isEmpty())
+                .collect(Collectors.toSet());
+    }
+
+    public static Duration getFastModePageDeadline() {
+        return Duration.ofSeconds(getIntProperty("scrape.fast.mode.deadline.seconds", 10));
+    }
+
+    /**
+     * Whether the browser skips downloading images, media, fonts and trackers; the image URLs are still read.
+     */
+    public static boolean isResourceBlockingEnabled() {
+        return Boolean.parseBoolean(PROPERTIES.getProperty("scrape.block.resources.enabled", "true"));
+    }
+
+    /**
+     * Whether the local formatter packs several listings into one call instead of formatting each on its own.
+     */
+    public static boolean isFormatterBatchModeEnabled() {
+        return Boolean.parseBoolean(PROPERTIES.getProperty("formatter.batch.enabled", "false"));
+    }
+
+    public static int getFormatterBatchMaxItems() {
+        return getIntProperty("formatter.batch.max.items", 4);
+    }
+
+    /**
+     * The estimated prompt tokens of all the listings in a batch together; the batch closes before going over it.
+     */
+    public static int getFormatterBatchMaxTokens() {
+        return getIntProperty("formatter.batch.max.tokens", 8000);
+    }
+
+    /**
+     * How long a batch waits for more listings after its first one arrived.
+     */
+    public static Duration getFormatterBatchLinger() {
+        return Duration.ofMillis(getIntProperty("formatter.batch.linger.ms", 3000));
+    }
+
+    /**
+     * Whether a slow Gemini CLI formatting is raced against the local Ollama formatter app.
+     */
+    public static boolean isFormatterHedgingEnabled() {
+        return Boolean.parseBoolean(PROPERTIES.getProperty("formatter.hedge.enabled", "false"));
+    }
+
+    /**
+     * The percentile of the recent Gemini CLI latencies after which the Ollama formatter is asked too.
+     */
+    public static double getFormatterHedgePercentile() {
+        return Double.parseDouble(PROPERTIES.getProperty("formatter.hedge.percentile", "90"));
+    }
+
+    public static Duration getFormatterHedgeInitialDelay() {
+        return Duration.ofSeconds(getIntProperty("formatter.hedge.initial.delay.seconds", 60));
+    }
+
+    /**
+     * Whether the price, surface, rooms, floor and city are read from the listing text with rules, so the formatter
+     * isn't asked for the ones found.
+     */
+    public static boolean isRuleBasedFieldsEnabled() {
+        return Boolean.parseBoolean(PROPERTIES.getProperty("formatter.rule.fields.enabled", "true"));
+    }
+
+    /**
+     * Port of the Prometheus metrics endpoint; 0 disables it. The metrics are available over JMX either way.
+     */
+    public static int getMetricsPort() {
+        return getIntProperty("metrics.http.port", 9464);
+    }
+
+    /**
+     * Address the Prometheus metrics endpoint listens on, e.g. 0.0.0.0 for a scraper on another host. Empty means
+     * the loopback address only.
+     */
+    public static String getMetricsHost() {
+        return PROPERTIES.getProperty("metrics.http.host", "").trim();
+    }
+
+    public static Duration getLocalFormatterTimeout() {
+        return Duration.ofSeconds(getIntProperty("local.formatter.timeout.seconds", 300));
+    }
+
     public static String getAuthenticationHeaderValue(){
-        String authString = getApiEndpointUsername() + ":" + getApiEndpointPassword();
-        String encodedAuthString = Base64.getEncoder().encodeToString(authString.getBytes());
-        String authHeaderValue = "Basic " + encodedAuthString;
-        return authHeaderValue;
+        // The credentials don't change while running, so the header is only encoded once
+        if (authenticationHeaderValue == null) {
+            String authString = getApiEndpointUsername() + ":" + getApiEndpointPassword();
+            String encodedAuthString = Base64.getEncoder().encodeToString(authString.getBytes());
+            authenticationHeaderValue = "Basic " + encodedAuthString;
+        }
+        return authenticationHeaderValue;
+    }
+
+    private static int getIntProperty(String key, int defaultValue) {
+        String value = PROPERTIES.getProperty(key);
+        return value == null || value.isBlank() ? defaultValue : Integer.parseInt(value.trim());
     }
 
 }
@@ -31,12 +31,13 @@ public class Constants {
     public static final String OUTPUT_CONVERSATION_AGENT = "conversation_output";
     public static final String OUTPUT_NEXT_REPLY_AGENT = "next_reply_output";
 
-    public static final String TOOL_GET_STRINGS = "getStringsFromApi";
-    public static final String TOOL_GET_MAPS= "getMapsFromApi";
     public static final String TOOL_EXTRACT = "extractPageContentAndImages";
     public static final String TOOL_FORMAT_LISTING_LOCAL = "formatListingLocal";
     public static final String TOOL_FORMAT_LISTING_LOCAL_GEMINI = "formatListingLocalGemini";
 
+    // Bump this whenever the formatter prompt or the listing schema changes, so cached formatter results are not reused.
+    public static final String FORMATTER_PROMPT_VERSION = "2";
+
 
     private static final List<String> INITIAL_LEAD_MESSAGES = new ArrayList<>(List.of(
             "Salut! Anunțul tău este încă disponibil? %s",
@@ -0,0 +1,266 @@
+package com.testehan.adk.agents.cm.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The metrics of all flows, in one registry shared by the whole process. Counters and latency histograms are created
+ * on first use and looked up by name and labels afterwards; gauges read their values from a callback when the metrics
+ * are scraped. The registry renders itself in the Prometheus text format, for {@link MetricsServer}, and is also
+ * registered as an MXBean, so the same numbers can be read over JMX.
+ * Labels are given as alternating names and values: {@code counter("cm_errors_total", "...", "component", "upload")}.
+ */
+public final class Metrics {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
+
+    // In seconds, from a quick HTTP request to a slow Gemini CLI answer
+    private static final double[] LATENCY_BUCKETS = {0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300};
+
+    private static final String JMX_NAME = "com.testehan.adk.agents.cm:type=Metrics";
+
+    private enum Type {
+        COUNTER, GAUGE, HISTOGRAM;
+
+        String prometheusName() {
+            return name().toLowerCase();
+        }
+    }
+
+    private record Family(String name, String help, Type type, ConcurrentMap<String, Object> children) {
+    }
+
+    // Sorted, so the output keeps the same order between scrapes
+    private static final ConcurrentMap<String, Family> FAMILIES = new ConcurrentSkipListMap<>();
+
+    private Metrics() {
+    }
+
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long value() {
+            return value.sum();
+        }
+    }
+
+    public static final class Histogram {
+        private final LongAdder[] buckets = new LongAdder[LATENCY_BUCKETS.length];
+        private final LongAdder count = new LongAdder();
+        private final DoubleAdder sum = new DoubleAdder();
+
+        private Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void observeNanos(long nanos) {
+            observeSeconds(nanos / 1_000_000_000.0);
+        }
+
+        public void observeSeconds(double seconds) {
+            // Each observation is counted in its own bucket only; the cumulative counts are summed up when rendering
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                if (seconds <= LATENCY_BUCKETS[i]) {
+                    buckets[i].increment();
+                    break;
+                }
+            }
+            count.increment();
+            sum.add(seconds);
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public double sum() {
+            return sum.sum();
+        }
+    }
+
+    public static Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER).children().computeIfAbsent(labelString(labels), key -> new Counter());
+    }
+
+    public static Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, Type.HISTOGRAM).children().computeIfAbsent(labelString(labels), key -> new Histogram());
+    }
+
+    /**
+     * Registers a gauge read when the metrics are scraped, replacing an earlier one with the same name and labels.
+     */
+    public static void gauge(String name, String help, Supplier<? extends Number> value, String... labels) {
+        family(name, help, Type.GAUGE).children().put(labelString(labels), value);
+    }
+
+    /**
+     * Registers a gauge whose labelled values are only known when the metrics are scraped, e.g. one value per running
+     * pipeline stage.
+     * @param values Called on every scrape; maps each value of the label to the gauge's value.
+     */
+    public static void gaugeFamily(String name, String help, String labelName, Supplier<Map<String, ? extends Number>> values) {
+        family(name, help, Type.GAUGE).children().put("", new LabelledGauges(labelName, values));
+    }
+
+    private record LabelledGauges(String labelName, Supplier<Map<String, ? extends Number>> values) {
+    }
+
+    /**
+     * Counts an error of one part of the flows, e.g. "scrape" or "upload".
+     */
+    public static void recordError(String component) {
+        counter("cm_errors_total", "Errors, by the part of the flows they happened in.", "component", component).increment();
+    }
+
+    /**
+     * Records an LLM call, whether a formatter backend or an ADK agent, with its latency and outcome.
+     */
+    public static void recordLlmCall(String backend, long nanos, boolean success) {
+        counter("cm_llm_calls_total", "LLM calls, by backend and outcome.", "backend", backend, "outcome", success ? "success" : "error").increment();
+        histogram("cm_llm_call_duration_seconds", "Latency of LLM calls, by backend.", "backend", backend).observeNanos(nanos);
+        if (!success) {
+            recordError("llm");
+        }
+    }
+
+    /**
+     * @return All metrics in the Prometheus text exposition format (version 0.0.4).
+     */
+    public static String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        for (Family family : FAMILIES.values()) {
+            text.append("# HELP ").append(family.name()).append(' ').append(family.help()).append('\n');
+            text.append("# TYPE ").append(family.name()).append(' ').append(family.type().prometheusName()).append('\n');
+            samples(family).forEach((sample, value) -> text.append(sample).append(' ').append(formatValue(value)).append('\n'));
+        }
+        return text.toString();
+    }
+
+    /**
+     * @return Every sample by its Prometheus name and labels, e.g. {@code cm_errors_total{component="upload"}}.
+     */
+    public static Map<String, Double> snapshot() {
+        Map<String, Double> snapshot = new LinkedHashMap<>();
+        FAMILIES.values().forEach(family -> snapshot.putAll(samples(family)));
+        return snapshot;
+    }
+
+    /**
+     * Makes the registry readable over JMX. Calling it again does nothing.
+     */
+    public static synchronized void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(JMX_NAME);
+            if (!server.isRegistered(objectName)) {
+                server.registerMBean(new MetricsMXBeanImpl(), objectName);
+                LOGGER.info("Metrics registered over JMX as {}.", JMX_NAME);
+            }
+        } catch (JMException e) {
+            LOGGER.error("Could not register the metrics over JMX.", e);
+        }
+    }
+
+    private static Family family(String name, String help, Type type) {
+        Family family = FAMILIES.computeIfAbsent(name, key -> new Family(name, help, type, new ConcurrentHashMap<>()));
+        if (family.type() != type) {
+            throw new IllegalArgumentException("Metric " + name + " is a " + family.type() + ", not a " + type);
+        }
+        return family;
+    }
+
+    private static Map<String, Double> samples(Family family) {
+        Map<String, Double> samples = new LinkedHashMap<>();
+        // Sorted by labels, for a stable output
+        new ConcurrentSkipListMap<>(family.children()).forEach((labels, child) -> {
+            switch (child) {
+                case Counter counter -> samples.put(family.name() + braced(labels), (double) counter.value());
+                case Histogram histogram -> {
+                    long cumulative = 0;
+                    for (int i = 0; i < LATENCY_BUCKETS.length; i++) {
+                        cumulative += histogram.buckets[i].sum();
+                        samples.put(family.name() + "_bucket" + braced(join(labels, "le=\"" + formatValue(LATENCY_BUCKETS[i]) + "\"")), (double) cumulative);
+                    }
+                    samples.put(family.name() + "_bucket" + braced(join(labels, "le=\"+Inf\"")), (double) histogram.count());
+                    samples.put(family.name() + "_sum" + braced(labels), histogram.sum());
+                    samples.put(family.name() + "_count" + braced(labels), (double) histogram.count());
+                }
+                case LabelledGauges gauges -> gauges.values().get().forEach((labelValue, value) ->
+                        samples.put(family.name() + braced(labelString(gauges.labelName(), labelValue)), value.doubleValue()));
+                case Supplier<?> gauge -> {
+                    // A gauge whose source is gone, e.g. a stopped pool, simply has no sample
+                    if (gauge.get() instanceof Number value) {
+                        samples.put(family.name() + braced(labels), value.doubleValue());
+                    }
+                }
+                default -> throw new IllegalStateException("Unknown metric " + child);
+            }
+        });
+        return samples;
+    }
+
+    private static String labelString(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("Labels must be name and value pairs");
+        }
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (!text.isEmpty()) {
+                text.append(',');
+            }
+            String value = Objects.toString(labels[i + 1], "");
+            text.append(labels[i]).append("=\"")
+                    .append(value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n"))
+                    .append('"');
+        }
+        return text.toString();
+    }
+
+    private static String join(String labels, String label) {
+        return labels.isEmpty() ? label : labels + "," + label;
+    }
+
+    private static String braced(String labels) {
+        return labels.isEmpty() ? "" : "{" + labels + "}";
+    }
+
+    private static String formatValue(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value) ? String.valueOf((long) value) : String.valueOf(value);
+    }
+
+    private static class MetricsMXBeanImpl implements MetricsMXBean {
+        @Override
+        public Map<String, Double> getSamples() {
+            return snapshot();
+        }
+
+        @Override
+        public String getPrometheusText() {
+            return toPrometheusText();
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package com.testehan.adk.agents.cm.metrics;
+
+import java.util.Map;
+
+/**
+ * The {@link Metrics} registry as seen over JMX, e.g. from JConsole or VisualVM.
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return Every sample by its Prometheus name and labels.
+     */
+    Map<String, Double> getSamples();
+
+    String getPrometheusText();
+}
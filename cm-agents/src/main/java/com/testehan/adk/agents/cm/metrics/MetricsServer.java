@@ -0,0 +1,85 @@
+package com.testehan.adk.agents.cm.metrics;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the {@link Metrics} registry on /metrics in the Prometheus text format, with the JDK's built-in HTTP server.
+ */
+public class MetricsServer implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricsServer.class);
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+
+    private MetricsServer(HttpServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Starts serving the metrics.
+     * @param host The address to listen on, or empty for the loopback address only.
+     * @throws UncheckedIOException When the address can't be bound, e.g. because the port is taken.
+     */
+    public static MetricsServer start(String host, int port) {
+        InetSocketAddress address = host == null || host.isBlank()
+                ? new InetSocketAddress(InetAddress.getLoopbackAddress(), port)
+                : new InetSocketAddress(host, port);
+        try {
+            if (address.isUnresolved()) {
+                throw new UnknownHostException(host);
+            }
+            HttpServer server = HttpServer.create(address, 0);
+            server.createContext("/metrics", MetricsServer::serveMetrics);
+            // Scrapes are rare and cheap, a virtual thread each is plenty
+            server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+            server.start();
+            LOGGER.info("Metrics are served on http://{}:{}/metrics",
+                    server.getAddress().getHostString(), server.getAddress().getPort());
+            return new MetricsServer(server);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not start the metrics server on " + address.getHostString() + ":" + port, e);
+        }
+    }
+
+    public int port() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+    }
+
+    private static void serveMetrics(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"GET".equals(exchange.getRequestMethod()) && !"HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            byte[] body = Metrics.toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream response = exchange.getResponseBody()) {
+                response.write(body);
+            }
+        }
+    }
+}
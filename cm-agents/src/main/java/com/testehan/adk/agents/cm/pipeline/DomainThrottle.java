@@ -0,0 +1,140 @@
+package com.testehan.adk.agents.cm.pipeline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+
+/**
+ * Paces the requests to one site and stops them while the site is blocking us.
+ * The rate adapts like TCP congestion control: every healthy page adds a step towards the maximum rate, every failed
+ * or slow page halves it, down to the minimum. A run of consecutive failures opens the circuit breaker, and
+ * {@link #tryAcquire()} then refuses at once instead of spending proxy credits and browser time on pages that won't
+ * load. After the cool-down one trial request is let through; its outcome closes the circuit again, at the minimum
+ * rate, or keeps it open for another cool-down.
+ */
+public class DomainThrottle {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(DomainThrottle.class);
+
+    // How many healthy pages it takes to climb from the minimum back to the maximum rate
+    private static final int RECOVERY_STEPS = 10;
+
+    private enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+
+    private final String domain;
+    private final TokenBucket bucket;
+    private final double minPermitsPerSecond;
+    private final double maxPermitsPerSecond;
+    private final long slowNanos;
+    private final int failureThreshold;
+    private final long openNanos;
+
+    private CircuitState state = CircuitState.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtNanos;
+    private boolean trialInFlight;
+    private long successes;
+    private long failures;
+    private long rejected;
+    private int timesOpened;
+
+    /**
+     * @param slowAfter A page that takes longer than this counts as a sign of trouble and slows the rate down.
+     * @param failureThreshold The number of failures in a row that opens the circuit.
+     * @param openFor How long the circuit stays open before a trial request is let through.
+     */
+    public DomainThrottle(String domain, double minPermitsPerSecond, double maxPermitsPerSecond, int burst,
+                          Duration slowAfter, int failureThreshold, Duration openFor) {
+        this.domain = domain;
+        this.minPermitsPerSecond = Math.min(minPermitsPerSecond, maxPermitsPerSecond);
+        this.maxPermitsPerSecond = maxPermitsPerSecond;
+        this.bucket = new TokenBucket(maxPermitsPerSecond, burst);
+        this.slowNanos = slowAfter.toNanos();
+        this.failureThreshold = Math.max(1, failureThreshold);
+        this.openNanos = openFor.toNanos();
+    }
+
+    /**
+     * Waits for the next request slot of this domain.
+     * @return false, without waiting, when the circuit is open and the request should not be sent.
+     */
+    public boolean tryAcquire() throws InterruptedException {
+        boolean trial = false;
+        synchronized (this) {
+            if (state == CircuitState.OPEN && System.nanoTime() - openedAtNanos >= openNanos) {
+                state = CircuitState.HALF_OPEN;
+                trialInFlight = false;
+            }
+            if (state == CircuitState.OPEN || (state == CircuitState.HALF_OPEN && trialInFlight)) {
+                rejected++;
+                return false;
+            }
+            if (state == CircuitState.HALF_OPEN) {
+                trialInFlight = true;
+                trial = true;
+            }
+        }
+        try {
+            bucket.acquire();
+        } catch (InterruptedException e) {
+            // The trial was never sent, so the next request gets to be the trial instead
+            if (trial) {
+                synchronized (this) {
+                    trialInFlight = false;
+                }
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    public synchronized void onSuccess(long latencyNanos) {
+        successes++;
+        consecutiveFailures = 0;
+        if (state == CircuitState.HALF_OPEN) {
+            LOGGER.info("{} is answering again, closing the circuit at {} pages/minute.", domain, perMinute(minPermitsPerSecond));
+            state = CircuitState.CLOSED;
+            bucket.setRate(minPermitsPerSecond);
+            return;
+        }
+        if (latencyNanos > slowNanos) {
+            slowDown();
+        } else {
+            double step = (maxPermitsPerSecond - minPermitsPerSecond) / RECOVERY_STEPS;
+            bucket.setRate(Math.min(maxPermitsPerSecond, bucket.rate() + step));
+        }
+    }
+
+    /**
+     * Counts a failure that says the site is in trouble or blocking us: a network error, a timeout, a captcha. A page
+     * the site served fine but without a listing on it, e.g. a removed one, is a success as far as the site goes.
+     */
+    public synchronized void onFailure() {
+        failures++;
+        consecutiveFailures++;
+        if (state == CircuitState.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            if (state != CircuitState.OPEN) {
+                timesOpened++;
+                LOGGER.warn("{} failed {} times in a row, opening the circuit for {} s.", domain, consecutiveFailures, openNanos / 1_000_000_000L);
+            }
+            state = CircuitState.OPEN;
+            openedAtNanos = System.nanoTime();
+            trialInFlight = false;
+        }
+        slowDown();
+    }
+
+    public synchronized String describe() {
+        return String.format("%s[circuit=%s, %.1f pages/minute, ok=%d, failed=%d, rejected=%d, opened=%d]",
+                domain, state, perMinute(bucket.rate()), successes, failures, rejected, timesOpened);
+    }
+
+    private void slowDown() {
+        bucket.setRate(Math.max(minPermitsPerSecond, bucket.rate() / 2));
+    }
+
+    private static double perMinute(double permitsPerSecond) {
+        return permitsPerSecond * 60;
+    }
+}
@@ -0,0 +1,126 @@
+package com.testehan.adk.agents.cm.pipeline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Groups items submitted close together into batches, so an expensive call is made once for several of them.
+ * Callers block in {@link #submit(Object, int)} until the batch holding their item was processed, so it can be used
+ * from the workers of a {@link PipelineStage} as if every item was handled alone.
+ * A batch is closed when it holds the maximum number of items, when the next item would take it over the weight
+ * budget, or when the linger time since its first item has passed. An item heavier than the budget goes alone.
+ * Batches are processed on virtual threads, so a slow batch doesn't hold back the next one.
+ * @param <I> The type of the items.
+ * @param <O> The type of the result of each item.
+ */
+public class MicroBatcher<I, O> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(MicroBatcher.class);
+
+    private record Pending<I, O>(I item, int weight, CompletableFuture<O> result) {
+    }
+
+    private final String name;
+    private final Function<List<I>, List<O>> batchFunction;
+    private final int maxItems;
+    private final int maxWeight;
+    private final long lingerNanos;
+    private final BlockingQueue<Pending<I, O>> pending = new LinkedBlockingQueue<>();
+    private final ExecutorService batchRunners = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder batchedItems = new LongAdder();
+
+    /**
+     * @param batchFunction Handles a batch and returns one result per item, in the same order.
+     * @param maxWeight The weight budget of a batch, e.g. the estimated prompt tokens.
+     */
+    public MicroBatcher(String name, Function<List<I>, List<O>> batchFunction, int maxItems, int maxWeight, Duration linger) {
+        this.name = name;
+        this.batchFunction = batchFunction;
+        this.maxItems = Math.max(1, maxItems);
+        this.maxWeight = Math.max(1, maxWeight);
+        this.lingerNanos = linger.toNanos();
+        Thread.ofVirtual().name(name + "-batcher").start(this::collectBatches);
+    }
+
+    /**
+     * Adds the item to the next batch and waits for its result.
+     * @throws ExecutionException When the batch function failed.
+     */
+    public O submit(I item, int weight) throws InterruptedException, ExecutionException {
+        Pending<I, O> entry = new Pending<>(item, weight, new CompletableFuture<>());
+        pending.put(entry);
+        return entry.result().get();
+    }
+
+    public int maxItems() {
+        return maxItems;
+    }
+
+    public String describe() {
+        long batchCount = batches.sum();
+        return String.format("%s[batches=%d, items=%d, avgBatchSize=%.2f]",
+                name, batchCount, batchedItems.sum(), batchCount == 0 ? 0.0 : (double) batchedItems.sum() / batchCount);
+    }
+
+    private void collectBatches() {
+        Pending<I, O> carried = null;
+        try {
+            while (true) {
+                Pending<I, O> first = carried != null ? carried : pending.take();
+                carried = null;
+                List<Pending<I, O>> batch = new ArrayList<>(List.of(first));
+                int weight = first.weight();
+                long deadline = System.nanoTime() + lingerNanos;
+
+                while (batch.size() < maxItems) {
+                    Pending<I, O> next = pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    if (weight + next.weight() > maxWeight) {
+                        // Starts the next batch instead
+                        carried = next;
+                        break;
+                    }
+                    batch.add(next);
+                    weight += next.weight();
+                }
+                batchRunners.submit(() -> run(batch));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run(List<Pending<I, O>> batch) {
+        batches.increment();
+        batchedItems.add(batch.size());
+        try {
+            List<O> results = batchFunction.apply(batch.stream().map(Pending::item).toList());
+            if (results.size() != batch.size()) {
+                throw new IllegalStateException("Expected " + batch.size() + " results but got " + results.size());
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                batch.get(i).result().complete(results.get(i));
+            }
+        } catch (RuntimeException e) {
+            LOGGER.error("{} failed to process a batch of {} items.", name, batch.size(), e);
+            batch.forEach(entry -> entry.result().completeExceptionally(e));
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.testehan.adk.agents.cm.pipeline;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * One stage of a processing pipeline: a bounded input queue drained by a fixed number of worker threads.
+ * The output of every item is handed to the downstream consumer, which is usually the next stage's {@link #submit(Object)}.
+ * Because every queue is bounded, a slow stage fills its queue and blocks the stage in front of it instead of letting
+ * work pile up in memory.
+ *
+ * @param <I> The type of the items this stage consumes.
+ * @param <O> The type of the items this stage produces.
+ */
+public class PipelineStage<I, O> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PipelineStage.class);
+
+    // All running stages, so their queue depth and throughput can be reported from one place. Keyed by run id, as two
+    // pipelines that overlap can each have a stage with the same name.
+    private static final Map<Long, PipelineStage<?, ?>> RUNNING_STAGES = new ConcurrentHashMap<>();
+    private static final AtomicLong RUN_IDS = new AtomicLong();
+
+    @FunctionalInterface
+    public interface StageWork<I, O> {
+        /**
+         * @return The output for the next stage, or null if nothing should be passed on.
+         */
+        O process(I item) throws Exception;
+    }
+
+    @FunctionalInterface
+    public interface StageSink<O> {
+        void accept(O item) throws InterruptedException;
+    }
+
+    private final String name;
+    private final int workers;
+    private final StageWork<I, O> work;
+    private final BlockingQueue<I> queue;
+
+    private StageSink<O> downstream = item -> { };
+    // Without a downstream a null output is the normal result of a last stage, not a dropped item
+    private boolean hasDownstream;
+    private Runnable onFinished = () -> { };
+
+    private final List<Thread> workerThreads = new ArrayList<>();
+    private final AtomicInteger runningWorkers = new AtomicInteger();
+    private final AtomicInteger busyWorkers = new AtomicInteger();
+    private final AtomicLong processedItems = new AtomicLong();
+    private final AtomicLong droppedItems = new AtomicLong();
+    private final AtomicLong failedItems = new AtomicLong();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private volatile boolean inputFinished;
+    private volatile long startNanos;
+    private volatile long runId;
+
+    public PipelineStage(String name, int queueCapacity, int workers, StageWork<I, O> work) {
+        this.name = name;
+        this.workers = Math.max(1, workers);
+        this.work = work;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+    }
+
+    /**
+     * Sends the output of this stage to the given sink, which is called from the worker threads.
+     */
+    public PipelineStage<I, O> to(StageSink<O> downstream) {
+        this.downstream = downstream;
+        this.hasDownstream = true;
+        return this;
+    }
+
+    /**
+     * Connects this stage to the next one. When this stage finishes, the next stage is told that no more input is coming.
+     * @return The next stage, so calls can be chained.
+     */
+    public <R> PipelineStage<O, R> then(PipelineStage<O, R> next) {
+        this.downstream = next::submit;
+        this.hasDownstream = true;
+        this.onFinished = next::finish;
+        return next;
+    }
+
+    /**
+     * Runs the given action once all workers of this stage are done.
+     */
+    public PipelineStage<I, O> onFinished(Runnable onFinished) {
+        this.onFinished = onFinished;
+        return this;
+    }
+
+    public PipelineStage<I, O> start() {
+        startNanos = System.nanoTime();
+        runningWorkers.set(workers);
+        runId = RUN_IDS.incrementAndGet();
+        RUNNING_STAGES.put(runId, this);
+        for (int i = 0; i < workers; i++) {
+            workerThreads.add(Thread.ofVirtual().name(name + "-worker-" + i).start(this::runWorker));
+        }
+        LOGGER.info("Pipeline stage '{}' started with {} workers and a queue of {}.", name, workers, queue.remainingCapacity());
+        return this;
+    }
+
+    /**
+     * Adds an item to this stage, blocking while the queue is full.
+     */
+    public void submit(I item) throws InterruptedException {
+        queue.put(item);
+    }
+
+    /**
+     * Signals that no more items will be submitted. The workers exit once the queue is drained.
+     */
+    public void finish() {
+        inputFinished = true;
+    }
+
+    public void awaitFinished() throws InterruptedException {
+        finished.await();
+    }
+
+    /**
+     * Stops the workers right away and drops whatever is still queued.
+     */
+    public void abort() {
+        inputFinished = true;
+        queue.clear();
+        workerThreads.forEach(Thread::interrupt);
+    }
+
+    private void runWorker() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                I item = queue.poll(200, TimeUnit.MILLISECONDS);
+                if (item == null) {
+                    if (inputFinished && queue.isEmpty()) {
+                        break;
+                    }
+                    continue;
+                }
+
+                busyWorkers.incrementAndGet();
+                try {
+                    O output = work.process(item);
+                    if (output != null) {
+                        processedItems.incrementAndGet();
+                        downstream.accept(output);
+                    } else if (hasDownstream) {
+                        droppedItems.incrementAndGet();
+                    } else {
+                        processedItems.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    failedItems.incrementAndGet();
+                    LOGGER.error("Pipeline stage '{}' failed to process an item.", name, e);
+                } finally {
+                    busyWorkers.decrementAndGet();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (runningWorkers.decrementAndGet() == 0) {
+                RUNNING_STAGES.remove(runId, this);
+                LOGGER.info("Pipeline stage finished: {}", describe());
+                try {
+                    onFinished.run();
+                } finally {
+                    finished.countDown();
+                }
+            }
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    public int busyWorkers() {
+        return busyWorkers.get();
+    }
+
+    public long processedItems() {
+        return processedItems.get();
+    }
+
+    /**
+     * @return The items for which the stage produced nothing to pass on, e.g. listings skipped as unchanged.
+     */
+    public long droppedItems() {
+        return droppedItems.get();
+    }
+
+    public long failedItems() {
+        return failedItems.get();
+    }
+
+    public double throughputPerMinute() {
+        double elapsedMinutes = (System.nanoTime() - startNanos) / 60_000_000_000.0;
+        return elapsedMinutes > 0 ? processedItems.get() / elapsedMinutes : 0;
+    }
+
+    public String describe() {
+        return String.format("%s[queue=%d, busy=%d/%d, processed=%d, dropped=%d, failed=%d, %.2f items/minute]",
+                name, queueDepth(), busyWorkers(), workers, processedItems(), droppedItems(), failedItems(), throughputPerMinute());
+    }
+
+    public static Collection<PipelineStage<?, ?>> runningStages() {
+        return RUNNING_STAGES.values();
+    }
+
+    public static String describeRunningStages() {
+        return RUNNING_STAGES.values().stream()
+                .map(PipelineStage::describe)
+                .collect(Collectors.joining(", "));
+    }
+}
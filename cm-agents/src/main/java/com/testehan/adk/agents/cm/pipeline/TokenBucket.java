@@ -0,0 +1,50 @@
+package com.testehan.adk.agents.cm.pipeline;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket rate limiter. Tokens are refilled at a steady rate up to the burst size, and every call to
+ * {@link #acquire()} takes one token, sleeping until it is available. Callers that have to wait reserve their token
+ * up front, so concurrent callers are spaced out instead of all waking up at the same time.
+ */
+public class TokenBucket {
+
+    private final double burst;
+    private double permitsPerNano;
+    private double tokens;
+    private long lastRefillNanos;
+
+    public TokenBucket(double permitsPerSecond, int burst) {
+        this.burst = Math.max(1, burst);
+        this.permitsPerNano = permitsPerSecond / 1_000_000_000.0;
+        this.tokens = this.burst;
+        this.lastRefillNanos = System.nanoTime();
+    }
+
+    public void acquire() throws InterruptedException {
+        long waitNanos;
+        synchronized (this) {
+            refill();
+            tokens -= 1;
+            waitNanos = tokens >= 0 ? 0 : (long) (-tokens / permitsPerNano);
+        }
+        if (waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    public synchronized void setRate(double permitsPerSecond) {
+        refill();
+        this.permitsPerNano = permitsPerSecond / 1_000_000_000.0;
+    }
+
+    public synchronized double rate() {
+        return permitsPerNano * 1_000_000_000.0;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - lastRefillNanos) * permitsPerNano);
+        lastRefillNanos = now;
+    }
+}
@@ -0,0 +1,288 @@
+package com.testehan.adk.agents.cm.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Caches formatter results by the content of the scraped text, so the same listing is never sent to the LLM twice.
+ * The key is a SHA-256 of the normalised scraped text plus the prompt/schema version, so changing the prompt
+ * invalidates everything that was cached with the old one.
+ * There are two tiers: an in-memory LRU for the current process and append-only segment files on disk that survive
+ * restarts. A segment record is [key length][key][value length][value]; only the offsets are kept in memory.
+ * Whole segments are deleted once they are older than the TTL or the segments take more than the maximum disk size,
+ * oldest first; a listing whose result went with them is simply formatted again.
+ */
+public class FormatterCache implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FormatterCache.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".dat";
+    // The keys are hex SHA-256 digests; anything much longer is a corrupt length prefix
+    private static final int MAX_KEY_BYTES = 256;
+
+    private final Path directory;
+    private final String version;
+    private final long maxSegmentBytes;
+    private final long maxTotalBytes;
+    private final Duration ttl;
+    private final Map<String, String> memory;
+    private final Map<String, SegmentLocation> diskIndex = new HashMap<>();
+
+    private int currentSegment;
+    private RandomAccessFile currentSegmentFile;
+
+    private long memoryHits;
+    private long diskHits;
+    private long misses;
+    private long bytesSaved;
+    private long evictedSegments;
+
+    private FormatterCache(Path directory, String version, int maxMemoryEntries, long maxSegmentBytes, long maxTotalBytes, Duration ttl) throws IOException {
+        Files.createDirectories(directory);
+        this.directory = directory;
+        this.version = version;
+        this.maxSegmentBytes = maxSegmentBytes;
+        this.maxTotalBytes = maxTotalBytes;
+        this.ttl = ttl;
+        this.memory = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxMemoryEntries;
+            }
+        };
+        loadSegments();
+    }
+
+    /**
+     * Opens (or creates) the cache stored in the given directory.
+     * @param version The prompt/schema version; results cached under another version are never returned.
+     * @param maxTotalBytes The disk size of all segments together, beyond which the oldest ones are deleted.
+     * @param ttl How long a segment is kept after it was last written to.
+     */
+    public static FormatterCache open(Path directory, String version, int maxMemoryEntries, long maxSegmentBytes, long maxTotalBytes, Duration ttl) {
+        try {
+            return new FormatterCache(directory, version, Math.max(1, maxMemoryEntries), maxSegmentBytes, maxTotalBytes, ttl);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the formatter cache in " + directory, e);
+        }
+    }
+
+    public synchronized Optional<String> lookup(String scrapedText) {
+        String key = key(scrapedText);
+
+        String value = memory.get(key);
+        if (value != null) {
+            memoryHits++;
+        } else {
+            value = readFromDisk(key);
+            if (value == null) {
+                misses++;
+                return Optional.empty();
+            }
+            diskHits++;
+            memory.put(key, value);
+        }
+        bytesSaved += scrapedText.getBytes(StandardCharsets.UTF_8).length + value.getBytes(StandardCharsets.UTF_8).length;
+        return Optional.of(value);
+    }
+
+    public synchronized void store(String scrapedText, String formattedJson) {
+        String key = key(scrapedText);
+        memory.put(key, formattedJson);
+        if (diskIndex.containsKey(key)) {
+            return;
+        }
+
+        try {
+            if (currentSegmentFile.length() >= maxSegmentBytes) {
+                currentSegmentFile.close();
+                currentSegment++;
+                currentSegmentFile = openSegment(currentSegment);
+                evictSegments();
+            }
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            byte[] valueBytes = formattedJson.getBytes(StandardCharsets.UTF_8);
+
+            long recordStart = currentSegmentFile.length();
+            currentSegmentFile.seek(recordStart);
+            currentSegmentFile.writeInt(keyBytes.length);
+            currentSegmentFile.write(keyBytes);
+            currentSegmentFile.writeInt(valueBytes.length);
+            currentSegmentFile.write(valueBytes);
+
+            diskIndex.put(key, new SegmentLocation(currentSegment, recordStart + 8 + keyBytes.length, valueBytes.length));
+        } catch (IOException e) {
+            LOGGER.error("Could not write formatter result to the disk cache.", e);
+        }
+    }
+
+    public synchronized double hitRatio() {
+        long lookups = memoryHits + diskHits + misses;
+        return lookups == 0 ? 0 : (double) (memoryHits + diskHits) / lookups;
+    }
+
+    public synchronized long bytesSaved() {
+        return bytesSaved;
+    }
+
+    public synchronized String describe() {
+        return String.format("FormatterCache[entries=%d, memoryHits=%d, diskHits=%d, misses=%d, hitRatio=%.2f, bytesSaved=%d, evictedSegments=%d]",
+                diskIndex.size(), memoryHits, diskHits, misses, hitRatio(), bytesSaved, evictedSegments);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        currentSegmentFile.close();
+    }
+
+    private String key(String scrapedText) {
+        // Whitespace differences don't change what the LLM sees, so they shouldn't change the key either
+        String normalised = scrapedText.strip().replaceAll("\\s+", " ");
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(version.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            return HexFormat.of().formatHex(digest.digest(normalised.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private String readFromDisk(String key) {
+        SegmentLocation location = diskIndex.get(key);
+        if (location == null) {
+            return null;
+        }
+        try (RandomAccessFile segment = new RandomAccessFile(segmentPath(location.segment()).toFile(), "r")) {
+            if (location.offset() + location.length() > segment.length()) {
+                LOGGER.warn("Formatter cache entry points past the end of segment {}, dropping it.", location.segment());
+                diskIndex.remove(key);
+                return null;
+            }
+            byte[] value = new byte[location.length()];
+            segment.seek(location.offset());
+            segment.readFully(value);
+            return new String(value, StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            LOGGER.error("Could not read formatter result from the disk cache.", e);
+            return null;
+        }
+    }
+
+    private void loadSegments() throws IOException {
+        List<Integer> segments = listSegments();
+        currentSegment = segments.isEmpty() ? 0 : segments.getLast();
+        evictSegments();
+
+        segments = listSegments();
+        for (int segment : segments) {
+            indexSegment(segment);
+        }
+        currentSegmentFile = openSegment(currentSegment);
+        LOGGER.info("Formatter cache loaded with {} entries from {} segments.", diskIndex.size(), segments.size());
+    }
+
+    private List<Integer> listSegments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .toList();
+        }
+    }
+
+    /**
+     * Deletes the oldest segments while they are past the TTL or the segments take more than the maximum disk size.
+     * The segment being written to is always kept.
+     */
+    private void evictSegments() throws IOException {
+        List<Integer> segments = listSegments();
+        long totalBytes = 0;
+        for (int segment : segments) {
+            totalBytes += Files.size(segmentPath(segment));
+        }
+        long cutoff = System.currentTimeMillis() - ttl.toMillis();
+        for (int segment : segments) {
+            Path path = segmentPath(segment);
+            if (segment == currentSegment
+                    || (totalBytes <= maxTotalBytes && Files.getLastModifiedTime(path).toMillis() >= cutoff)) {
+                break;
+            }
+            totalBytes -= Files.size(path);
+            Files.delete(path);
+            diskIndex.values().removeIf(location -> location.segment() == segment);
+            evictedSegments++;
+            LOGGER.info("Deleted formatter cache segment {}.", path.getFileName());
+        }
+    }
+
+    private void indexSegment(int segment) throws IOException {
+        Path path = segmentPath(segment);
+        long size = Files.size(path);
+        long offset = 0;
+        // The length prefixes are checked against what is left of the file, so a corrupt one can't allocate a huge
+        // array or read into the next record. Replay stops at the first bad record.
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            while (offset < size) {
+                long remaining = size - offset;
+                if (remaining < 8) {
+                    break;
+                }
+                int keyLength = in.readInt();
+                if (keyLength <= 0 || keyLength > MAX_KEY_BYTES || 8L + keyLength > remaining) {
+                    break;
+                }
+                byte[] key = new byte[keyLength];
+                in.readFully(key);
+                int valueLength = in.readInt();
+                if (valueLength < 0 || 8L + keyLength + valueLength > remaining) {
+                    break;
+                }
+                in.skipNBytes(valueLength);
+                diskIndex.put(new String(key, StandardCharsets.UTF_8), new SegmentLocation(segment, offset + 8 + keyLength, valueLength));
+                offset += 8L + keyLength + valueLength;
+            }
+        }
+        // A record cut short by a crash, or a corrupt one, is dropped with everything after it; what came before is still good
+        if (offset < size) {
+            LOGGER.warn("Truncating {} at the first bad record, at offset {}", path, offset);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(offset);
+            }
+        }
+    }
+
+    private RandomAccessFile openSegment(int segment) throws IOException {
+        return new RandomAccessFile(segmentPath(segment).toFile(), "rw");
+    }
+
+    private Path segmentPath(int segment) {
+        return directory.resolve(String.format("%s%05d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private record SegmentLocation(int segment, long offset, int length) {
+    }
+}
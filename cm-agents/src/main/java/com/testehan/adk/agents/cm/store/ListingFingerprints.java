@@ -0,0 +1,144 @@
+package com.testehan.adk.agents.cm.store;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Remembers what each processed listing looked like, across restarts, so a later run can tell whether it changed
+ * without loading it in the browser again. A fingerprint holds the HTTP validators the site sent (ETag and
+ * Last-Modified, when it sends them) and a hash of the fields read from the page.
+ * The store is an append-only log of JSON lines, the latest line of a URL wins. Fingerprints older than the TTL are
+ * forgotten, so every listing is scraped in full once in a while; they are dropped from the log the next time the
+ * store is opened.
+ */
+public class ListingFingerprints implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ListingFingerprints.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    /**
+     * @param contentHash The hash of the fields read from the page.
+     * @param etag The page's ETag header, or null.
+     * @param lastModified The page's Last-Modified header, or null.
+     */
+    public record Fingerprint(String contentHash, String etag, String lastModified) {
+    }
+
+    private record Line(String url, long recordedAt, String contentHash, String etag, String lastModified) {
+    }
+
+    private final Path logFile;
+    private final Duration ttl;
+    private final Map<String, Line> fingerprints = new HashMap<>();
+    private BufferedWriter logWriter;
+
+    private ListingFingerprints(Path directory, Duration ttl) throws IOException {
+        Files.createDirectories(directory);
+        this.logFile = directory.resolve("fingerprints.log");
+        this.ttl = ttl;
+        load();
+    }
+
+    /**
+     * Opens (or creates) the store in the given directory.
+     * @param ttl How long a fingerprint is trusted; after that the listing is scraped in full again.
+     */
+    public static ListingFingerprints open(Path directory, Duration ttl) {
+        try {
+            return new ListingFingerprints(directory, ttl);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the listing fingerprints in " + directory, e);
+        }
+    }
+
+    /**
+     * @return The fingerprint recorded for the URL within the TTL, if any.
+     */
+    public synchronized Optional<Fingerprint> get(String url) {
+        Line line = fingerprints.get(url);
+        if (line == null || System.currentTimeMillis() - line.recordedAt() >= ttl.toMillis()) {
+            return Optional.empty();
+        }
+        return Optional.of(new Fingerprint(line.contentHash(), line.etag(), line.lastModified()));
+    }
+
+    /**
+     * Records the fingerprint of a listing that was processed, replacing the previous one.
+     */
+    public synchronized void record(String url, Fingerprint fingerprint) {
+        Line line = new Line(url, System.currentTimeMillis(), fingerprint.contentHash(), fingerprint.etag(), fingerprint.lastModified());
+        fingerprints.put(url, line);
+        try {
+            logWriter.write(OBJECT_MAPPER.writeValueAsString(line));
+            logWriter.newLine();
+            logWriter.flush();
+        } catch (IOException e) {
+            LOGGER.error("Could not persist the fingerprint of {}", url, e);
+        }
+    }
+
+    public synchronized int size() {
+        return fingerprints.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        logWriter.close();
+    }
+
+    private void load() throws IOException {
+        boolean compact = false;
+        if (Files.exists(logFile)) {
+            long cutoff = System.currentTimeMillis() - ttl.toMillis();
+            List<String> lines = Files.readAllLines(logFile, StandardCharsets.UTF_8);
+            for (String text : lines) {
+                Line line;
+                try {
+                    line = OBJECT_MAPPER.readValue(text, Line.class);
+                } catch (JsonProcessingException e) {
+                    // A line cut short by a crash
+                    compact = true;
+                    continue;
+                }
+                if (line.recordedAt() < cutoff) {
+                    compact = true;
+                    continue;
+                }
+                fingerprints.merge(line.url(), line, (older, newer) -> newer.recordedAt() >= older.recordedAt() ? newer : older);
+            }
+            // A listing processed several times leaves several lines behind
+            compact |= fingerprints.size() < lines.size();
+        }
+
+        if (compact) {
+            Path compacted = logFile.resolveSibling(logFile.getFileName() + ".tmp");
+            try (BufferedWriter writer = Files.newBufferedWriter(compacted, StandardCharsets.UTF_8)) {
+                for (Line line : fingerprints.values()) {
+                    writer.write(OBJECT_MAPPER.writeValueAsString(line));
+                    writer.newLine();
+                }
+            }
+            Files.move(compacted, logFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        logWriter = Files.newBufferedWriter(logFile, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        LOGGER.info("Listing fingerprints loaded for {} URLs{}.", fingerprints.size(), compact ? ", expired entries were removed" : "");
+    }
+}
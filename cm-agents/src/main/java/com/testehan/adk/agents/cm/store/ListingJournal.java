@@ -0,0 +1,222 @@
+package com.testehan.adk.agents.cm.store;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.stream.Stream;
+
+/**
+ * Records how far each listing URL got through a run, so a run that died halfway can resume where it stopped instead
+ * of paying again for the scrapes and formatter calls it already did. Every completed stage is appended to the
+ * current segment as one JSON line, together with the payload the next stage needs (the scraped text, or the
+ * formatted listing). Only the last stage of each URL is kept in memory; URLs that reached {@link Stage#UPLOADED}
+ * are forgotten.
+ * Old segments are compacted when the journal is opened and whenever the current segment grows past its size limit,
+ * or past twice what the last compaction left in it if that is more: the live entries are written to a fresh segment
+ * and the older ones are deleted. The second bound keeps a live set larger than the limit from being rewritten on
+ * every record. Entries older than the TTL are
+ * dropped, since the page may have changed by then. A line cut short by a crash is skipped.
+ */
+public class ListingJournal implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ListingJournal.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    public enum Stage {
+        SCRAPED,
+        FORMATTED,
+        /**
+         * The listing is in the upload outbox, which owns the upload from there on, across restarts too.
+         */
+        UPLOADED
+    }
+
+    public record Entry(String url, Stage stage, long recordedAt, Map<String, Object> payload) {
+    }
+
+    private final Path directory;
+    private final Duration ttl;
+    private final long maxSegmentBytes;
+    private final Map<String, Entry> lastStages = new HashMap<>();
+
+    private int currentSegment;
+    private long currentSegmentBytes;
+    private long compactedSegmentBytes;
+    private BufferedWriter segmentWriter;
+
+    private ListingJournal(Path directory, Duration ttl, long maxSegmentBytes) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.ttl = ttl;
+        this.maxSegmentBytes = maxSegmentBytes;
+        load();
+    }
+
+    /**
+     * Opens (or creates) the journal stored in the given directory and compacts what earlier runs left behind.
+     * @param ttl How long a recorded stage can be resumed from.
+     * @param maxSegmentBytes The size at which the current segment is compacted into a new one.
+     */
+    public static ListingJournal open(Path directory, Duration ttl, long maxSegmentBytes) {
+        try {
+            return new ListingJournal(directory, ttl, maxSegmentBytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the listing journal in " + directory, e);
+        }
+    }
+
+    /**
+     * @return The last stage the URL completed within the TTL, if it didn't reach {@link Stage#UPLOADED} yet.
+     */
+    public synchronized Optional<Entry> lastCompleted(String url) {
+        Entry entry = lastStages.get(url);
+        if (entry == null || isExpired(entry)) {
+            return Optional.empty();
+        }
+        return Optional.of(entry);
+    }
+
+    /**
+     * Appends the completed stage. The line is flushed before this returns, so it survives the process dying.
+     * @param payload What the next stage needs to continue from here, or an empty map.
+     */
+    public synchronized void record(String url, Stage stage, Map<String, Object> payload) {
+        Entry entry = new Entry(url, stage, System.currentTimeMillis(), payload);
+        if (stage == Stage.UPLOADED) {
+            // Nothing left to resume, unless the URL was never journaled in the first place
+            if (lastStages.remove(url) == null) {
+                return;
+            }
+        } else {
+            lastStages.put(url, entry);
+        }
+
+        try {
+            String line = OBJECT_MAPPER.writeValueAsString(entry);
+            segmentWriter.write(line);
+            segmentWriter.newLine();
+            segmentWriter.flush();
+            currentSegmentBytes += lineBytes(line);
+            if (currentSegmentBytes > Math.max(maxSegmentBytes, 2 * compactedSegmentBytes)) {
+                compact();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Could not journal stage {} of {}, it will be redone after a crash.", stage, url, e);
+        }
+    }
+
+    /**
+     * @return The number of URLs that stopped before {@link Stage#UPLOADED}.
+     */
+    public synchronized int unfinished() {
+        return lastStages.size();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        segmentWriter.close();
+    }
+
+    private boolean isExpired(Entry entry) {
+        return System.currentTimeMillis() - entry.recordedAt() > ttl.toMillis();
+    }
+
+    private void load() throws IOException {
+        List<Path> segments = segments();
+        for (Path segment : segments) {
+            for (String line : Files.readAllLines(segment, StandardCharsets.UTF_8)) {
+                Entry entry;
+                try {
+                    entry = OBJECT_MAPPER.readValue(line, Entry.class);
+                } catch (IOException e) {
+                    LOGGER.warn("Skipping an unreadable line in journal segment {}", segment.getFileName());
+                    continue;
+                }
+                if (entry.stage() == Stage.UPLOADED) {
+                    lastStages.remove(entry.url());
+                } else {
+                    lastStages.put(entry.url(), entry);
+                }
+            }
+        }
+        lastStages.values().removeIf(this::isExpired);
+
+        currentSegment = segments.isEmpty() ? 0 : segmentNumber(segments.getLast());
+        compact();
+        LOGGER.info("Listing journal loaded with {} unfinished URLs from {} segments.", lastStages.size(), segments.size());
+    }
+
+    /**
+     * Writes the live entries to the next segment and deletes all the older ones. The new segment only appears
+     * under its final name once it is complete, so a crash during compaction loses nothing.
+     */
+    private void compact() throws IOException {
+        if (segmentWriter != null) {
+            segmentWriter.close();
+        }
+        lastStages.values().removeIf(this::isExpired);
+        int compactedSegment = currentSegment + 1;
+        Path temporary = directory.resolve(SEGMENT_PREFIX + compactedSegment + ".tmp");
+        long bytes = 0;
+        try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+            for (Entry entry : lastStages.values()) {
+                String line = OBJECT_MAPPER.writeValueAsString(entry);
+                writer.write(line);
+                writer.newLine();
+                bytes += lineBytes(line);
+            }
+        }
+        Files.move(temporary, segmentPath(compactedSegment), StandardCopyOption.ATOMIC_MOVE);
+
+        for (Path segment : segments()) {
+            if (segmentNumber(segment) < compactedSegment) {
+                Files.delete(segment);
+            }
+        }
+        currentSegment = compactedSegment;
+        currentSegmentBytes = bytes;
+        compactedSegmentBytes = bytes;
+        segmentWriter = Files.newBufferedWriter(segmentPath(currentSegment), StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+    }
+
+    private static long lineBytes(String line) {
+        return line.getBytes(StandardCharsets.UTF_8).length + System.lineSeparator().length();
+    }
+
+    private List<Path> segments() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(path -> {
+                        String name = path.getFileName().toString();
+                        return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+                    })
+                    .sorted((first, second) -> Integer.compare(segmentNumber(first), segmentNumber(second)))
+                    .toList();
+        }
+    }
+
+    private Path segmentPath(int segment) {
+        return directory.resolve(SEGMENT_PREFIX + segment + SEGMENT_SUFFIX);
+    }
+
+    private static int segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
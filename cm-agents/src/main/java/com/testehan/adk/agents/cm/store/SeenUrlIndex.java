@@ -0,0 +1,266 @@
+package com.testehan.adk.agents.cm.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remembers which listing URLs were already processed, across restarts.
+ * A memory-mapped Bloom filter is the only part kept in memory and answers every "never seen" lookup. Only its
+ * positives are checked against the exact set, so a false positive never causes a URL to be skipped. The exact set
+ * stays on disk, split by URL hash into partition logs of "timestamp TAB url" lines, so a lookup reads one small
+ * partition instead of the whole set.
+ * Entries older than the TTL count as not seen, so stale listings are refreshed; they are dropped from the partitions
+ * (and the Bloom filter is rebuilt) the next time the index is opened.
+ */
+public class SeenUrlIndex implements AutoCloseable {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SeenUrlIndex.class);
+
+    private static final int BLOOM_HASH_FUNCTIONS = 7;
+    private static final int PARTITIONS = 256;
+
+    private final Path partitionDirectory;
+    private final Duration ttl;
+    private final long bloomBits;
+    private final FileChannel bloomChannel;
+    private final MappedByteBuffer bloom;
+
+    private SeenUrlIndex(Path directory, Duration ttl, long bloomBits) throws IOException {
+        this.partitionDirectory = directory.resolve("partitions");
+        Files.createDirectories(partitionDirectory);
+        this.ttl = ttl;
+        this.bloomBits = bloomBits;
+
+        this.bloomChannel = FileChannel.open(directory.resolve("seen-urls.bloom"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.bloom = bloomChannel.map(FileChannel.MapMode.READ_WRITE, 0, bloomBits / 8);
+
+        migrateSingleLog(directory.resolve("seen-urls.log"));
+        load();
+    }
+
+    /**
+     * Opens (or creates) the index stored in the given directory.
+     * @param ttl How long a processed URL is skipped before it is processed again.
+     * @param bloomBits The size of the Bloom filter in bits. Changing it rebuilds the filter from the partitions.
+     */
+    public static SeenUrlIndex open(Path directory, Duration ttl, long bloomBits) {
+        try {
+            return new SeenUrlIndex(directory, ttl, Math.max(8, bloomBits - bloomBits % 8));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the seen-URL index in " + directory, e);
+        }
+    }
+
+    /**
+     * @return true if the URL was processed within the TTL and can be skipped.
+     */
+    public synchronized boolean isFresh(String url) {
+        if (!mightContain(url)) {
+            return false;
+        }
+        long lastProcessed = 0;
+        try {
+            for (String line : readPartition(partitionOf(url))) {
+                int tab = line.indexOf('\t');
+                if (tab > 0 && url.equals(line.substring(tab + 1))) {
+                    lastProcessed = Math.max(lastProcessed, parseTimestamp(line, tab));
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Could not read the seen-URL partition of {}, processing it again.", url, e);
+            return false;
+        }
+        return System.currentTimeMillis() - lastProcessed < ttl.toMillis();
+    }
+
+    /**
+     * Records the URL as processed. Call it once the listing is safely handed over, e.g. in the upload outbox, so a
+     * listing lost on the way is processed again in the next run.
+     */
+    public synchronized void markProcessed(String url) {
+        addToBloom(url);
+        try {
+            Files.writeString(partitionFile(partitionOf(url)), System.currentTimeMillis() + "\t" + url + System.lineSeparator(),
+                    StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            LOGGER.error("Could not persist seen URL {}", url, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        bloom.force();
+        bloomChannel.close();
+    }
+
+    /**
+     * Moves the entries of the single log used by earlier versions into the partitions.
+     */
+    private void migrateSingleLog(Path singleLog) throws IOException {
+        if (!Files.exists(singleLog)) {
+            return;
+        }
+        Map<Integer, StringBuilder> partitions = new HashMap<>();
+        for (String line : Files.readAllLines(singleLog, StandardCharsets.UTF_8)) {
+            int tab = line.indexOf('\t');
+            if (tab > 0) {
+                partitions.computeIfAbsent(partitionOf(line.substring(tab + 1)), key -> new StringBuilder())
+                        .append(line).append(System.lineSeparator());
+            }
+        }
+        for (Map.Entry<Integer, StringBuilder> partition : partitions.entrySet()) {
+            Files.writeString(partitionFile(partition.getKey()), partition.getValue(), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+        Files.delete(singleLog);
+        LOGGER.info("Seen-URL log migrated into {} partitions.", partitions.size());
+    }
+
+    private void load() throws IOException {
+        boolean compacted = false;
+        boolean bloomIsStale = false;
+        int liveUrls = 0;
+        long cutoff = System.currentTimeMillis() - ttl.toMillis();
+        // One partition in memory at a time, the whole set never is
+        for (int partition = 0; partition < PARTITIONS; partition++) {
+            List<String> lines = readPartition(partition);
+            if (lines.isEmpty()) {
+                continue;
+            }
+            Map<String, Long> processedAt = new HashMap<>();
+            boolean compact = false;
+            for (String line : lines) {
+                int tab = line.indexOf('\t');
+                long timestamp = tab > 0 ? parseTimestamp(line, tab) : -1;
+                if (timestamp < 0) {
+                    // A line cut short by a crash
+                    LOGGER.warn("Skipping a malformed line in seen-URL partition {}: {}", partition, line);
+                    compact = true;
+                    continue;
+                }
+                if (timestamp < cutoff) {
+                    compact = true;
+                    continue;
+                }
+                processedAt.merge(line.substring(tab + 1), timestamp, Math::max);
+            }
+            // The same URL processed several times leaves several lines behind
+            compact |= processedAt.size() < lines.size();
+
+            if (compact) {
+                Path partitionFile = partitionFile(partition);
+                Path rewritten = partitionFile.resolveSibling(partitionFile.getFileName() + ".tmp");
+                try (BufferedWriter writer = Files.newBufferedWriter(rewritten, StandardCharsets.UTF_8)) {
+                    for (Map.Entry<String, Long> entry : processedAt.entrySet()) {
+                        writer.write(entry.getValue() + "\t" + entry.getKey());
+                        writer.newLine();
+                    }
+                }
+                Files.move(rewritten, partitionFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                compacted = true;
+            }
+            bloomIsStale |= !processedAt.keySet().stream().allMatch(this::mightContain);
+            liveUrls += processedAt.size();
+        }
+
+        // A Bloom filter can't forget, so it is rebuilt from the live entries whenever a partition was compacted.
+        if (compacted || bloomIsStale) {
+            for (int i = 0; i < bloom.capacity(); i++) {
+                bloom.put(i, (byte) 0);
+            }
+            for (int partition = 0; partition < PARTITIONS; partition++) {
+                for (String line : readPartition(partition)) {
+                    addToBloom(line.substring(line.indexOf('\t') + 1));
+                }
+            }
+        }
+
+        LOGGER.info("Seen-URL index loaded with {} URLs{}.", liveUrls, compacted ? ", expired and malformed entries were removed" : "");
+    }
+
+    private List<String> readPartition(int partition) throws IOException {
+        Path partitionFile = partitionFile(partition);
+        if (!Files.exists(partitionFile)) {
+            return List.of();
+        }
+        // Decoded leniently, a line cut short by a crash can end in half a character
+        return new String(Files.readAllBytes(partitionFile), StandardCharsets.UTF_8).lines().toList();
+    }
+
+    private Path partitionFile(int partition) {
+        return partitionDirectory.resolve(String.format("%03d.log", partition));
+    }
+
+    private static int partitionOf(String url) {
+        return (int) Math.floorMod(hash(url)[1], (long) PARTITIONS);
+    }
+
+    /**
+     * @return The timestamp of a "timestamp TAB url" line, or -1 if it isn't a number.
+     */
+    private static long parseTimestamp(String line, int tab) {
+        try {
+            return Long.parseLong(line.substring(0, tab));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private boolean mightContain(String url) {
+        long[] hashes = hash(url);
+        for (int i = 0; i < BLOOM_HASH_FUNCTIONS; i++) {
+            long bit = bitIndex(hashes, i);
+            if ((bloom.get((int) (bit >>> 3)) & (1 << (bit & 7))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void addToBloom(String url) {
+        long[] hashes = hash(url);
+        for (int i = 0; i < BLOOM_HASH_FUNCTIONS; i++) {
+            long bit = bitIndex(hashes, i);
+            int byteIndex = (int) (bit >>> 3);
+            bloom.put(byteIndex, (byte) (bloom.get(byteIndex) | (1 << (bit & 7))));
+        }
+    }
+
+    // Double hashing: the i-th hash function is h1 + i * h2.
+    private long bitIndex(long[] hashes, int i) {
+        return Math.floorMod(hashes[0] + i * hashes[1], bloomBits);
+    }
+
+    private static long[] hash(String url) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(url.getBytes(StandardCharsets.UTF_8));
+            long h1 = 0;
+            long h2 = 0;
+            for (int i = 0; i < 8; i++) {
+                h1 = (h1 << 8) | (digest[i] & 0xff);
+                h2 = (h2 << 8) | (digest[i + 8] & 0xff);
+            }
+            return new long[]{h1, h2};
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
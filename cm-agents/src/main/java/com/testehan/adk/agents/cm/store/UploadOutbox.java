@@ -0,0 +1,94 @@
+package com.testehan.adk.agents.cm.store;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+/**
+ * Durable queue of listings waiting to be uploaded. Every listing is written to its own file before the upload is
+ * attempted and the file is only deleted once the backend accepted it, so queued uploads survive a crash or restart.
+ * Listings the backend rejects for good are moved to the "failed" subdirectory for a human to look at.
+ */
+public class UploadOutbox {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadOutbox.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final Path directory;
+    private final Path failedDirectory;
+
+    private UploadOutbox(Path directory) throws IOException {
+        this.directory = Files.createDirectories(directory);
+        this.failedDirectory = Files.createDirectories(directory.resolve("failed"));
+    }
+
+    public static UploadOutbox open(Path directory) {
+        try {
+            return new UploadOutbox(directory);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open the upload outbox in " + directory, e);
+        }
+    }
+
+    public Entry add(String listingJson, String listingSourceUrl) throws IOException {
+        // The timestamp prefix keeps the files, and so the replay, in the order the listings were queued
+        Entry entry = new Entry(System.currentTimeMillis() + "-" + UUID.randomUUID(), listingJson, listingSourceUrl);
+        Path temporary = directory.resolve(entry.id() + ".tmp");
+        OBJECT_MAPPER.writeValue(temporary.toFile(), entry);
+        Files.move(temporary, file(entry), StandardCopyOption.ATOMIC_MOVE);
+        return entry;
+    }
+
+    public void remove(Entry entry) {
+        try {
+            Files.deleteIfExists(file(entry));
+        } catch (IOException e) {
+            LOGGER.error("Could not remove uploaded listing {} from the outbox, it will be uploaded again.", entry.listingSourceUrl(), e);
+        }
+    }
+
+    public void moveToFailed(Entry entry) {
+        try {
+            Files.move(file(entry), failedDirectory.resolve(file(entry).getFileName()), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            LOGGER.error("Could not move listing {} to the failed uploads.", entry.listingSourceUrl(), e);
+        }
+    }
+
+    /**
+     * @return The listings still waiting to be uploaded, oldest first.
+     */
+    public List<Entry> pending() {
+        List<Entry> entries = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path path : files.filter(p -> p.getFileName().toString().endsWith(".json")).sorted().toList()) {
+                try {
+                    entries.add(OBJECT_MAPPER.readValue(path.toFile(), Entry.class));
+                } catch (IOException e) {
+                    LOGGER.error("Skipping unreadable outbox file {}", path, e);
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.error("Could not list the upload outbox.", e);
+        }
+        return entries;
+    }
+
+    private Path file(Entry entry) {
+        return directory.resolve(entry.id() + ".json");
+    }
+
+    public record Entry(String id, String listingJson, String listingSourceUrl) {
+    }
+}
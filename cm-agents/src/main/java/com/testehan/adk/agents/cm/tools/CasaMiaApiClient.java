@@ -0,0 +1,131 @@
+package com.testehan.adk.agents.cm.tools;
+
+import com.testehan.adk.agents.cm.config.ConfigLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.JdkClientHttpRequestFactory;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.testehan.adk.agents.cm.config.ConfigLoader.getAuthenticationHeaderValue;
+
+/**
+ * The one HTTP client used for every call to the CasaMia API and the local formatter endpoint.
+ * Sharing it keeps connections alive and TLS sessions cached between calls, instead of every tool and agent setting up
+ * its own client, connections and handshakes. Requests made through {@link #send} or {@link #uploadRestTemplate()} are
+ * counted and timed.
+ */
+public class CasaMiaApiClient {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CasaMiaApiClient.class);
+
+    private static final CasaMiaApiClient SHARED = new CasaMiaApiClient(
+            ConfigLoader.getApiConnectTimeout(), ConfigLoader.getApiRequestTimeout(), ConfigLoader.getApiUploadTimeout());
+
+    private final HttpClient httpClient;
+    private final RestTemplate uploadRestTemplate;
+    private final Duration defaultRequestTimeout;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder failedRequests = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+
+    private CasaMiaApiClient(Duration connectTimeout, Duration defaultRequestTimeout, Duration uploadTimeout) {
+        ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(connectTimeout)
+                .executor(executor)
+                .build();
+        this.defaultRequestTimeout = defaultRequestTimeout;
+
+        // A multipart upload with its images takes much longer than an API call; timing it out early would make the
+        // retry create the listing a second time
+        JdkClientHttpRequestFactory requestFactory = new JdkClientHttpRequestFactory(httpClient, executor);
+        requestFactory.setReadTimeout(uploadTimeout);
+        this.uploadRestTemplate = new RestTemplate(requestFactory);
+        this.uploadRestTemplate.getInterceptors().add(timingInterceptor());
+    }
+
+    public static CasaMiaApiClient shared() {
+        return SHARED;
+    }
+
+    /**
+     * @return A request builder for the given URI with the default timeout and the Authorization header already set.
+     * Callers can override the timeout for slow endpoints.
+     */
+    public HttpRequest.Builder authorizedRequest(String uri) {
+        return request(uri).header("Authorization", getAuthenticationHeaderValue());
+    }
+
+    /**
+     * @return A request builder for the given URI with the default timeout, for endpoints that don't need credentials.
+     */
+    public HttpRequest.Builder request(String uri) {
+        return HttpRequest.newBuilder()
+                .uri(URI.create(uri))
+                .timeout(defaultRequestTimeout);
+    }
+
+    public <T> HttpResponse<T> send(HttpRequest request, HttpResponse.BodyHandler<T> bodyHandler) throws IOException, InterruptedException {
+        long startNanos = System.nanoTime();
+        boolean failed = true;
+        try {
+            HttpResponse<T> response = httpClient.send(request, bodyHandler);
+            failed = response.statusCode() >= 500;
+            return response;
+        } finally {
+            record(startNanos, failed);
+        }
+    }
+
+    /**
+     * @return A RestTemplate that sends its requests through the shared client, with the longer upload read timeout,
+     * for the multipart uploads.
+     */
+    public RestTemplate uploadRestTemplate() {
+        return uploadRestTemplate;
+    }
+
+    public String describe() {
+        long count = requests.sum();
+        return String.format("CasaMiaApiClient[requests=%d, failed=%d, avgLatencyMs=%d]",
+                count, failedRequests.sum(), count == 0 ? 0 : totalLatencyNanos.sum() / count / 1_000_000);
+    }
+
+    private ClientHttpRequestInterceptor timingInterceptor() {
+        return (request, body, execution) -> {
+            long startNanos = System.nanoTime();
+            boolean failed = true;
+            try {
+                var response = execution.execute(request, body);
+                failed = response.getStatusCode().is5xxServerError();
+                return response;
+            } finally {
+                record(startNanos, failed);
+            }
+        };
+    }
+
+    private void record(long startNanos, boolean failed) {
+        requests.increment();
+        totalLatencyNanos.add(System.nanoTime() - startNanos);
+        if (failed) {
+            failedRequests.increment();
+        }
+        if (requests.sum() % 100 == 0) {
+            LOGGER.info("{}", describe());
+        }
+    }
+}
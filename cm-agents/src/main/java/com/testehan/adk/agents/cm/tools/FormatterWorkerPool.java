@@ -0,0 +1,157 @@
+package com.testehan.adk.agents.cm.tools;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A pool of long-lived formatter processes, so each listing doesn't pay for starting Node, loading the CLI and
+ * authenticating. The worker command must keep running and speak line-delimited JSON over stdin/stdout:
+ * it reads one request per line, {"id": "...", "prompt": "..."}, and answers each with one line,
+ * {"id": "...", "output": "..."} or {"id": "...", "error": "..."}.
+ * Every request has a deadline; a worker that misses it, dies or breaks the framing is killed and replaced.
+ * workers/gemini-worker.js is such a worker for the Gemini API.
+ */
+public final class FormatterWorkerPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FormatterWorkerPool.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    private final List<String> command;
+    private final BlockingQueue<Worker> idleWorkers = new LinkedBlockingQueue<>();
+    private final Queue<Worker> allWorkers = new ConcurrentLinkedQueue<>();
+    // One permit for every worker that may be started; a permit is returned when a worker is killed.
+    private final Semaphore startPermits;
+    private final ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor();
+
+    public FormatterWorkerPool(List<String> command, int size) {
+        this.command = command;
+        this.startPermits = new Semaphore(Math.max(1, size));
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "formatter-worker-pool-shutdown"));
+    }
+
+    /**
+     * Sends the prompt to an idle worker, starting one if the pool isn't full yet.
+     * @return The worker's output for this prompt.
+     */
+    public String execute(String prompt, Duration deadline) throws IOException, InterruptedException, TimeoutException {
+        Worker worker = acquire();
+        String requestId = UUID.randomUUID().toString();
+        JsonNode response;
+        try {
+            worker.stdin.write(OBJECT_MAPPER.writeValueAsString(Map.of("id", requestId, "prompt", prompt)));
+            worker.stdin.newLine();
+            worker.stdin.flush();
+
+            // readLine can't time out by itself, so it runs on its own thread and we wait for it with the deadline
+            CompletableFuture<String> responseLine = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return worker.stdout.readLine();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, readers);
+
+            String line = responseLine.get(deadline.toMillis(), TimeUnit.MILLISECONDS);
+            if (line == null) {
+                throw new IOException("Formatter worker exited with code " + worker.process.waitFor());
+            }
+            response = OBJECT_MAPPER.readTree(line);
+            if (!requestId.equals(response.path("id").asText())) {
+                throw new IOException("Formatter worker answered a different request, the framing is broken.");
+            }
+        } catch (TimeoutException e) {
+            LOGGER.warn("Formatter worker missed the {} s deadline, restarting it.", deadline.toSeconds());
+            kill(worker);
+            throw e;
+        } catch (ExecutionException e) {
+            LOGGER.warn("Formatter worker failed, restarting it. {}", e.getCause().getMessage());
+            kill(worker);
+            throw new IOException(e.getCause());
+        } catch (IOException | InterruptedException e) {
+            LOGGER.warn("Formatter worker failed, restarting it. {}", e.getMessage());
+            kill(worker);
+            throw e;
+        }
+
+        // The worker answered within the deadline, so it can take the next request even if this one failed
+        idleWorkers.offer(worker);
+        if (response.hasNonNull("error")) {
+            throw new IOException("Formatter worker returned an error: " + response.get("error").asText());
+        }
+        return response.path("output").asText();
+    }
+
+    public void shutdown() {
+        readers.shutdownNow();
+        allWorkers.forEach(worker -> worker.process.destroyForcibly());
+    }
+
+    private Worker acquire() throws IOException, InterruptedException {
+        while (true) {
+            Worker worker = idleWorkers.poll();
+            if (worker != null) {
+                return worker;
+            }
+            if (startPermits.tryAcquire()) {
+                try {
+                    return start();
+                } catch (IOException e) {
+                    startPermits.release();
+                    throw e;
+                }
+            }
+            // A killed worker only gives its start permit back, so waiting for an idle one alone could wait forever
+            worker = idleWorkers.poll(1, TimeUnit.SECONDS);
+            if (worker != null) {
+                return worker;
+            }
+        }
+    }
+
+    private Worker start() throws IOException {
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.DISCARD)
+                .start();
+        Worker worker = new Worker(process,
+                new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8)),
+                new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8)));
+        allWorkers.add(worker);
+        LOGGER.info("Started formatter worker process {}.", process.pid());
+        return worker;
+    }
+
+    private void kill(Worker worker) {
+        worker.process.destroyForcibly();
+        allWorkers.remove(worker);
+        startPermits.release();
+    }
+
+    private record Worker(Process process, BufferedWriter stdin, BufferedReader stdout) {
+    }
+}
@@ -0,0 +1,184 @@
+package com.testehan.adk.agents.cm.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * Formats a listing with a primary backend and, when it is slow, also with a secondary one, keeping whichever answers
+ * first with a usable listing. The secondary request is only sent once the primary took longer than a percentile of
+ * its recent latencies (or failed outright), so the second backend only sees the slow tail of the requests while the
+ * tail latency drops towards the median. An answer only wins if it passes the same check as an unhedged one. The
+ * request that loses the race is cancelled, except for a primary that runs on a resident worker: that one is left to
+ * finish, so the worker goes back to its pool instead of being killed.
+ * Until enough latencies have been seen, a fixed initial delay is used instead of the percentile.
+ * @param <T> The type of the formatting request.
+ */
+public class HedgedFormatter<T> {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(HedgedFormatter.class);
+
+    private static final int LATENCY_WINDOW = 100;
+    private static final int MIN_LATENCY_SAMPLES = 20;
+
+    /**
+     * Decides whether an answer can be used as the listing, e.g. by validating it against the schema it was asked for.
+     */
+    public interface ResultCheck<T> {
+        boolean isUsable(T request, boolean fromPrimary, Map<String, Object> result);
+    }
+
+    private record Attempt(boolean primary, Map<String, Object> result, long latencyNanos) {
+    }
+
+    private final Function<T, Map<String, Object>> primary;
+    private final Function<T, Map<String, Object>> secondary;
+    private final ResultCheck<T> resultCheck;
+    private final boolean interruptPrimary;
+    private final double percentile;
+    private final long initialDelayNanos;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    // The latest primary latencies, as a ring buffer
+    private final long[] primaryLatencies = new long[LATENCY_WINDOW];
+    private int latencySamples;
+
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder hedged = new LongAdder();
+    private final LongAdder secondaryWins = new LongAdder();
+
+    /**
+     * @param resultCheck Decides whether an answer is usable, on top of it being non-empty and without an error.
+     * @param interruptPrimary Whether a primary that lost the race is interrupted, or left to finish in the background.
+     * @param percentile The percentile of the primary's latency after which the secondary is asked too, e.g. 90.
+     * @param initialDelay The hedge delay used until enough primary latencies were recorded.
+     */
+    public HedgedFormatter(Function<T, Map<String, Object>> primary, Function<T, Map<String, Object>> secondary,
+                           ResultCheck<T> resultCheck, boolean interruptPrimary,
+                           double percentile, Duration initialDelay) {
+        this.primary = primary;
+        this.secondary = secondary;
+        this.resultCheck = resultCheck;
+        this.interruptPrimary = interruptPrimary;
+        this.percentile = Math.min(100, Math.max(1, percentile));
+        this.initialDelayNanos = initialDelay.toNanos();
+    }
+
+    public Map<String, Object> format(T request) {
+        requests.increment();
+        long startNanos = System.nanoTime();
+        long hedgeDelayNanos = hedgeDelayNanos();
+        CompletionService<Attempt> race = new ExecutorCompletionService<>(executor);
+        Future<Attempt> primaryRequest = race.submit(() -> attempt(true, request));
+        Future<Attempt> secondaryRequest = null;
+
+        try {
+            Map<String, Object> fallback = null;
+            int outstanding = 1;
+            Future<Attempt> first = race.poll(hedgeDelayNanos, TimeUnit.NANOSECONDS);
+            if (first != null) {
+                outstanding--;
+                Attempt attempt = resultOf(first, true);
+                recordPrimaryLatency(attempt.latencyNanos());
+                if (isUsable(request, attempt)) {
+                    return attempt.result();
+                }
+                fallback = attempt.result();
+            }
+
+            LOGGER.info("Primary formatter {} after {} ms, asking the secondary formatter too.",
+                    first == null ? "is still busy" : "failed", (System.nanoTime() - startNanos) / 1_000_000);
+            hedged.increment();
+            secondaryRequest = race.submit(() -> attempt(false, request));
+            outstanding++;
+
+            while (outstanding-- > 0) {
+                Future<Attempt> done = race.take();
+                Attempt attempt = resultOf(done, done == primaryRequest);
+                if (attempt.primary()) {
+                    recordPrimaryLatency(attempt.latencyNanos());
+                }
+                if (isUsable(request, attempt)) {
+                    if (!attempt.primary()) {
+                        secondaryWins.increment();
+                        // The primary was cut short, but it took at least this long
+                        if (!primaryRequest.isDone()) {
+                            recordPrimaryLatency(System.nanoTime() - startNanos);
+                        }
+                    }
+                    return attempt.result();
+                }
+                if (fallback == null) {
+                    fallback = attempt.result();
+                }
+            }
+            return fallback;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Map.of("error", "Interrupted while waiting for the formatters");
+        } finally {
+            // Cancelling interrupts the loser, which stops its CLI process or HTTP request. A resident worker would
+            // be killed by that, so it is left to answer and go back to its pool.
+            primaryRequest.cancel(interruptPrimary);
+            if (secondaryRequest != null) {
+                secondaryRequest.cancel(true);
+            }
+        }
+    }
+
+    public synchronized String describe() {
+        return String.format("HedgedFormatter[requests=%d, hedged=%d, secondaryWins=%d, hedgeDelay=%d ms]",
+                requests.sum(), hedged.sum(), secondaryWins.sum(), hedgeDelayNanos() / 1_000_000);
+    }
+
+    private Attempt attempt(boolean isPrimary, T request) {
+        long startNanos = System.nanoTime();
+        Map<String, Object> result = (isPrimary ? primary : secondary).apply(request);
+        return new Attempt(isPrimary, result, System.nanoTime() - startNanos);
+    }
+
+    private static Attempt resultOf(Future<Attempt> future, boolean isPrimary) throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            // Not usable either way, and without a latency it doesn't count towards the percentile
+            return new Attempt(isPrimary, Map.of("error", "Formatter failed: " + e.getCause().getMessage()), 0);
+        }
+    }
+
+    private boolean isUsable(T request, Attempt attempt) {
+        Map<String, Object> result = attempt.result();
+        return result != null && !result.isEmpty() && !result.containsKey("error")
+                && resultCheck.isUsable(request, attempt.primary(), result);
+    }
+
+    private synchronized void recordPrimaryLatency(long latencyNanos) {
+        if (latencyNanos <= 0) {
+            return;
+        }
+        primaryLatencies[latencySamples % LATENCY_WINDOW] = latencyNanos;
+        latencySamples++;
+    }
+
+    private synchronized long hedgeDelayNanos() {
+        if (latencySamples < MIN_LATENCY_SAMPLES) {
+            return initialDelayNanos;
+        }
+        long[] sorted = Arrays.copyOf(primaryLatencies, Math.min(latencySamples, LATENCY_WINDOW));
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, index)];
+    }
+}
@@ -1,21 +1,34 @@
 package com.testehan.adk.agents.cm.tools;
 
 import com.testehan.adk.agents.cm.config.ConfigLoader;
+import com.testehan.adk.agents.cm.metrics.Metrics;
+import com.testehan.adk.agents.cm.pipeline.DomainThrottle;
+import com.testehan.adk.agents.cm.store.ListingFingerprints;
 import org.jetbrains.annotations.NotNull;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
 import org.openqa.selenium.*;
 import org.openqa.selenium.chrome.ChromeDriver;
 import org.openqa.selenium.chrome.ChromeOptions;
-import org.openqa.selenium.support.ui.ExpectedConditions;
-import org.openqa.selenium.support.ui.WebDriverWait;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
-import java.time.Duration;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 public class HumanizedBrowsing
@@ -29,21 +42,96 @@ public class HumanizedBrowsing
             "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/108.0.0.0 Safari/537.36"
     );
 
-    private final Map<String, Function<String, Map>> domainHandlers = new HashMap<>();
+    private final Map<String, BiFunction<String, Boolean, Map>> domainHandlers = new HashMap<>();
+    private final Map<String, Function<Document, Map<String, Object>>> httpHandlers = new HashMap<>();
+    // Null when pages are always scraped in full
+    private final ListingFingerprints fingerprints;
 
     private static final Logger LOGGER = LoggerFactory.getLogger(HumanizedBrowsing.class);
 
-    private final ChromeOptions chromeOptions;
+    // Every browser in the pool is started with its own ChromeOptions, so each session still gets a random User-Agent.
+    private static final WebDriverPool DRIVER_POOL = new WebDriverPool(
+            HumanizedBrowsing::createDriver,
+            ConfigLoader.getWebDriverPoolMaxSize(),
+            ConfigLoader.getWebDriverPoolMinIdle(),
+            ConfigLoader.getWebDriverPoolMaxPagesPerSession(),
+            ConfigLoader.getWebDriverPoolMaxJsHeapMb());
+
+    private static final HttpPageFetcher HTTP_FETCHER = new HttpPageFetcher(
+            ConfigLoader.getApiConnectTimeout(), ConfigLoader.getHttpFetchTimeout());
+
+    private static final StructuredDataExtractor STRUCTURED_DATA_EXTRACTOR = new StructuredDataExtractor();
+
+    private static final String OLX_GALLERY_SELECTOR = "[data-testid='image-galery-container']";
+
+    private static final String OLX_EXTRACTION_SCRIPT = loadScript("/scripts/olx-extract.js");
+    private static final String PUBLI24_EXTRACTION_SCRIPT = loadScript("/scripts/publi24-extract.js");
+
+    // Why a scrape failed, on failures that aren't network errors. Only blocks count towards opening a site's circuit.
+    private static final String FAILURE_REASON = "failureReason";
+    private static final String REASON_BLOCKED = "blocked";
+    private static final String REASON_LISTING_MISSING = "listing_missing";
+    private static final String REASON_NO_HANDLER = "no_handler";
+
+    // The HTTP validators of a page fetched over plain HTTP, carried in its result until they go into the fingerprint
+    private static final String HTTP_ETAG = "etag";
+    private static final String HTTP_LAST_MODIFIED = "lastModified";
+    private static final Pattern BLOCK_PAGE = Pattern.compile(
+            "captcha|access denied|are you a robot|verify you are human|just a moment|too many requests", Pattern.CASE_INSENSITIVE);
+
+    private static final LongAdder HTTP_PAGES = new LongAdder();
+    private static final LongAdder HTTP_NANOS = new LongAdder();
+    private static final LongAdder HTTP_FALLBACKS = new LongAdder();
+    private static final LongAdder BROWSER_PAGES = new LongAdder();
+    private static final LongAdder BROWSER_NANOS = new LongAdder();
+    private static final LongAdder UNCHANGED_PAGES = new LongAdder();
+    private static final LongAdder CHANGED_PAGES = new LongAdder();
+    private static final LongAdder FAILED_PROBES = new LongAdder();
+
+    // One throttle per site, shared by every scraper, since the site (and the proxy) sees all of them together
+    private static final Map<String, DomainThrottle> DOMAIN_THROTTLES = new ConcurrentHashMap<>();
 
     public HumanizedBrowsing() {
+        this(null);
+    }
+
+    /**
+     * @param fingerprints What the listings looked like when they were last processed. A listing that has one is
+     *                     probed with a plain HTTP request first and not scraped again while it is unchanged.
+     *                     Null to always scrape in full.
+     */
+    public HumanizedBrowsing(ListingFingerprints fingerprints) {
+        this.fingerprints = fingerprints;
         domainHandlers.put("https://www.olx.ro/",this::extractOlxData);
         domainHandlers.put("https://www.publi24.ro/",this::extractPubliData);
 
-        chromeOptions = initializeChromeOptions();
+        // Sites whose listing is in the server-rendered HTML are tried over plain HTTP first, the browser is the fallback
+        httpHandlers.put("https://www.olx.ro/",this::extractOlxDataOverHttp);
+        httpHandlers.put("https://www.publi24.ro/",this::extractPubliDataOverHttp);
+    }
+
+    /**
+     * Starts the standby browsers ahead of the first page, so the first listings don't pay the Chrome cold start.
+     */
+    public static void warmUp() {
+        DRIVER_POOL.warmUp();
+    }
+
+    public static String describeDriverPool() {
+        return DRIVER_POOL.describe() + " " + ResourceBlockingChromeDriver.describe();
+    }
+
+    /**
+     * With resource blocking on, images, media, fonts and trackers are not downloaded; the scrapers only read the
+     * page's text and the image URLs, not the images themselves.
+     */
+    private static WebDriver createDriver() {
+        ChromeOptions chromeOptions = initializeChromeOptions();
+        return ConfigLoader.isResourceBlockingEnabled() ? new ResourceBlockingChromeDriver(chromeOptions) : new ChromeDriver(chromeOptions);
     }
 
     @NotNull
-    private ChromeOptions initializeChromeOptions() {
+    private static ChromeOptions initializeChromeOptions() {
         final ChromeOptions chromeOptions;
         // Select a random User-Agent for this session
         String randomUserAgent = USER_AGENTS.get(new Random().nextInt(USER_AGENTS.size()));
@@ -65,222 +153,508 @@ public class HumanizedBrowsing
         return chromeOptions;
     }
 
+    /**
+     * Scrapes the page at the pace its site allows. When the site's circuit is open the page is not fetched and an
+     * error result is returned straight away. A page that didn't change since its fingerprint was recorded gets the
+     * status "unchanged" and is not scraped. A scraped page's result holds its new "fingerprint", when the page
+     * embeds data to take one from.
+     */
     public Map<String, Object> browseUrl(String targetUrl) {
+        DomainThrottle throttle = throttleFor(targetUrl);
+        try {
+            if (!throttle.tryAcquire()) {
+                LOGGER.warn("Not fetching {}, its site is blocking us: {}", targetUrl, throttle.describe());
+                recordScrape(targetUrl, "circuit_open", 0);
+                return Map.of("status", "error", "message", "Circuit open for " + targetUrl);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Map.of("status", "error", "message", "Interrupted");
+        }
+
+        long startNanos = System.nanoTime();
+        Optional<ListingFingerprints.Fingerprint> previous = fingerprints == null ? Optional.empty() : fingerprints.get(targetUrl);
+        HttpPageFetcher.ConditionalPage probe = previous.isPresent() ? probe(targetUrl, previous.get()) : null;
+        if (probe != null && (probe.notModified() || previous.get().contentHash().equals(contentHash(STRUCTURED_DATA_EXTRACTOR.extract(probe.document()))))) {
+            UNCHANGED_PAGES.increment();
+            throttle.onSuccess(System.nanoTime() - startNanos);
+            // Keeps the fingerprint from expiring and picks up validators the server sends by now
+            fingerprints.record(targetUrl, new ListingFingerprints.Fingerprint(previous.get().contentHash(),
+                    probe.etag() != null ? probe.etag() : previous.get().etag(),
+                    probe.lastModified() != null ? probe.lastModified() : previous.get().lastModified()));
+            LOGGER.info("{} is unchanged since it was last processed, not scraping it again.", targetUrl);
+            recordScrape(targetUrl, "unchanged", System.nanoTime() - startNanos);
+            return Map.of("status", "unchanged", "message", "Unchanged since it was last processed");
+        }
+        if (probe != null) {
+            CHANGED_PAGES.increment();
+        }
+
+        Map<String, Object> result = fetchPage(targetUrl, probe == null ? null : probe.document());
+        if ("success".equals(result.get("status")) || !isSiteFailure(result)) {
+            throttle.onSuccess(System.nanoTime() - startNanos);
+        } else {
+            throttle.onFailure();
+        }
+        recordScrape(targetUrl, String.valueOf(result.get("status")), System.nanoTime() - startNanos);
+        return withFingerprint(result, probe);
+    }
+
+    private static void recordScrape(String targetUrl, String outcome, long nanos) {
+        String host = Objects.toString(URI.create(targetUrl).getHost(), "");
+        Metrics.histogram("cm_scrape_duration_seconds", "Time to scrape a listing page, by site and outcome.",
+                "domain", host, "outcome", outcome).observeNanos(nanos);
+        if (!"success".equals(outcome) && !"unchanged".equals(outcome)) {
+            Metrics.recordError("scrape");
+        }
+    }
+
+    /**
+     * Asks for the page with the validators of its fingerprint, over plain HTTP.
+     * @return The answer, or null when the probe failed and the page has to be scraped to tell.
+     */
+    private HttpPageFetcher.ConditionalPage probe(String targetUrl, ListingFingerprints.Fingerprint previous) {
+        try {
+            return HTTP_FETCHER.fetchConditionally(proxiedUrl(targetUrl), targetUrl, previous.etag(), previous.lastModified());
+        } catch (IOException e) {
+            FAILED_PROBES.increment();
+            LOGGER.info("Could not probe {} for changes, scraping it. {}", targetUrl, e.getMessage());
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    /**
+     * Replaces the result's content hash with the page's fingerprint. The validators come from the probe when there
+     * was one, otherwise from the page's own HTTP fetch; a page that was only rendered in the browser has none.
+     */
+    private static Map<String, Object> withFingerprint(Map<String, Object> result, HttpPageFetcher.ConditionalPage probe) {
+        Map<String, Object> withFingerprint = new HashMap<>(result);
+        Object etag = withFingerprint.remove(HTTP_ETAG);
+        Object lastModified = withFingerprint.remove(HTTP_LAST_MODIFIED);
+        if (!(withFingerprint.remove("contentHash") instanceof String contentHash)) {
+            return withFingerprint;
+        }
+        withFingerprint.put("fingerprint", probe != null
+                ? new ListingFingerprints.Fingerprint(contentHash, probe.etag(), probe.lastModified())
+                : new ListingFingerprints.Fingerprint(contentHash, (String) etag, (String) lastModified));
+        return withFingerprint;
+    }
+
+    /**
+     * The hash covers only the data the page embeds, which reads the same from the server-rendered HTML and from the
+     * page rendered in the browser. The image URLs carry sizes and tokens that change between visits, so only their
+     * number counts.
+     * @return The hash, or null when the page embeds nothing to take one from.
+     */
+    private static String contentHash(Map<String, Object> structuredData) {
+        Map<String, Object> fields = new TreeMap<>(structuredData);
+        Object imageUrls = fields.remove("imageUrls");
+        if (fields.isEmpty()) {
+            return null;
+        }
+        fields.put("imageCount", imageUrls instanceof List<?> list ? list.size() : 0);
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(fields.toString().getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static String describeFingerprints() {
+        long unchanged = UNCHANGED_PAGES.sum();
+        long changed = CHANGED_PAGES.sum();
+        return String.format("Fingerprints[unchanged=%d, changed=%d, failedProbes=%d, unchangedRatio=%.2f]",
+                unchanged, changed, FAILED_PROBES.sum(), unchanged + changed == 0 ? 0.0 : (double) unchanged / (unchanged + changed));
+    }
+
+    public static String describeDomainThrottles() {
+        return DOMAIN_THROTTLES.values().stream()
+                .map(DomainThrottle::describe)
+                .collect(Collectors.joining(", ", "DomainThrottles[", "]"));
+    }
+
+    private static DomainThrottle throttleFor(String targetUrl) {
+        String host = URI.create(targetUrl).getHost();
+        return DOMAIN_THROTTLES.computeIfAbsent(host == null ? "" : host, domain -> new DomainThrottle(domain,
+                ConfigLoader.getScrapeMinPagesPerMinute() / 60.0,
+                ConfigLoader.getScrapeMaxPagesPerMinute() / 60.0,
+                ConfigLoader.getScrapeRateBurst(),
+                ConfigLoader.getScrapeSlowPageThreshold(),
+                ConfigLoader.getScrapeCircuitFailureThreshold(),
+                ConfigLoader.getScrapeCircuitOpenDuration()));
+    }
+
+    /**
+     * @param probedPage The page as the change probe fetched it over HTTP, or null. It is used instead of fetching the
+     *                   page over HTTP again.
+     */
+    private Map<String, Object> fetchPage(String targetUrl, Document probedPage) {
         LOGGER.info("fetch from {}", targetUrl);
 
-        var encodedTargetUrl = URLEncoder.encode(targetUrl, StandardCharsets.UTF_8);
-        var fullUrl = String.format(PROXIED_URL_TEMPLATE, ConfigLoader.getScraperApiKey(), encodedTargetUrl);
+        var fullUrl = proxiedUrl(targetUrl);
+
+        if (ConfigLoader.isHttpFetchModeEnabled()) {
+            for (var entry : httpHandlers.entrySet()) {
+                if (targetUrl.startsWith(entry.getKey())) {
+                    Map<String, Object> result = probedPage != null
+                            ? entry.getValue().apply(probedPage)
+                            : fetchOverHttp(entry.getValue(), fullUrl, targetUrl);
+                    if ("success".equals(result.get("status"))) {
+                        return result;
+                    }
+                    LOGGER.info("HTTP fetch of {} was not enough ({}), falling back to the browser.", targetUrl, result.get("message"));
+                    HTTP_FALLBACKS.increment();
+                }
+            }
+        }
 
         for (var entry : domainHandlers.entrySet()) {
             if (targetUrl.startsWith(entry.getKey())) {
-                return entry.getValue().apply(fullUrl);
+                long startNanos = System.nanoTime();
+                Map<String, Object> result = entry.getValue().apply(fullUrl, isFastMode(targetUrl));
+                BROWSER_PAGES.increment();
+                BROWSER_NANOS.add(System.nanoTime() - startNanos);
+                return result;
             }
         }
 
         return handleDefault(fullUrl);
     }
 
+    private static String proxiedUrl(String targetUrl) {
+        var encodedTargetUrl = URLEncoder.encode(targetUrl, StandardCharsets.UTF_8);
+        return String.format(PROXIED_URL_TEMPLATE, ConfigLoader.getScraperApiKey(), encodedTargetUrl);
+    }
+
+    /**
+     * Whether the browser waits for the page to be ready (fast mode) or scrolls like a human, for this URL's site.
+     */
+    private static boolean isFastMode(String targetUrl) {
+        return ConfigLoader.getFastModeDomains().contains(URI.create(targetUrl).getHost());
+    }
+
+    public static String describePageWaits() {
+        return PageWaits.describe();
+    }
+
+    public static String describeFetchModes() {
+        long httpPages = HTTP_PAGES.sum();
+        long browserPages = BROWSER_PAGES.sum();
+        return String.format("FetchModes[http=%d (avg %d ms), browser=%d (avg %d ms), httpFallbacks=%d]",
+                httpPages, httpPages == 0 ? 0 : HTTP_NANOS.sum() / httpPages / 1_000_000,
+                browserPages, browserPages == 0 ? 0 : BROWSER_NANOS.sum() / browserPages / 1_000_000,
+                HTTP_FALLBACKS.sum());
+    }
+
+    private Map<String, Object> fetchOverHttp(Function<Document, Map<String, Object>> extractor, String fullUrl, String targetUrl) {
+        long startNanos = System.nanoTime();
+        try {
+            HttpPageFetcher.ConditionalPage page = HTTP_FETCHER.fetchConditionally(fullUrl, targetUrl, null, null);
+            Map<String, Object> result = extractor.apply(page.document());
+            if (!"success".equals(result.get("status"))) {
+                return result;
+            }
+            HTTP_PAGES.increment();
+            HTTP_NANOS.add(System.nanoTime() - startNanos);
+            LOGGER.info("Fetched {} over HTTP in {} ms.", targetUrl, (System.nanoTime() - startNanos) / 1_000_000);
+            Map<String, Object> withValidators = new HashMap<>(result);
+            if (page.etag() != null) {
+                withValidators.put(HTTP_ETAG, page.etag());
+            }
+            if (page.lastModified() != null) {
+                withValidators.put(HTTP_LAST_MODIFIED, page.lastModified());
+            }
+            return withValidators;
+        } catch (IOException e) {
+            return Map.of("status", "error", "message", e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return Map.of("status", "error", "message", "Interrupted");
+        }
+    }
+
     @NotNull
-    private Map<String, Object> extractOlxData(String fullUrl) {
-        WebDriver driver = null;
+    private Map<String, Object> extractOlxData(String fullUrl, boolean fastMode) {
+        WebDriverPool.PooledWebDriver pooledDriver = null;
         try {
-            driver = new ChromeDriver(chromeOptions);
-            WebDriverWait wait = new WebDriverWait(driver, Duration.ofSeconds(15)); // Increased wait time slightly
+            pooledDriver = DRIVER_POOL.borrow();
+            WebDriver driver = pooledDriver.driver();
 
+            takeNetworkImageUrls(driver); // Whatever an earlier page left behind
             driver.get(fullUrl);
+            PageWaits waits = PageWaits.start(driver, fastMode, ConfigLoader.getFastModePageDeadline());
 
-            wait.until(ExpectedConditions.presenceOfElementLocated(By.tagName("body")));
+            waits.element(By.tagName("body"));
             LOGGER.info("Page body loaded.");
 
-            // Simulate human scrolling : This is crucial for lazy-loading content and looks more natural.
-            simulateHumanScrolling(driver);
+            if (waits.fastMode()) {
+                waits.settle(OLX_GALLERY_SELECTOR);
+            } else {
+                // Simulate human scrolling : This is crucial for lazy-loading content and looks more natural.
+                simulateHumanScrolling(driver);
+            }
 
+            // The listing is rendered client side, this is the one element worth waiting for
             String mainContentSelector = "[data-testid='main']";
-            String text = "";
             try {
-                WebElement mainContentContainer = wait.until(ExpectedConditions.presenceOfElementLocated(By.cssSelector(mainContentSelector)));
-                LOGGER.info("Found the main container.");
-                text = mainContentContainer.getText();
+                waits.element(By.cssSelector(mainContentSelector));
             } catch (TimeoutException e) {
                 LOGGER.warn("Main content container with selector '{}' was not found on the page.", mainContentSelector);
             }
-            LOGGER.info("Obtained page text successfully.");
 
-            List<String> imageUrls = new ArrayList<>();
-            String gallerySelector = "[data-testid='image-galery-container']";
-            try {
-                WebElement galleryContainer = wait.until(ExpectedConditions.presenceOfElementLocated(By.cssSelector(gallerySelector)));
-                LOGGER.info("Found the image gallery container.");
-
-                List<WebElement> imageElements = galleryContainer.findElements(By.tagName("img"));
-
-                imageUrls = imageElements.stream()
-                        .map(img -> img.getAttribute("src"))
-                        .filter(src -> src != null && !src.isEmpty() && src.startsWith("http"))
-                        .distinct()
-                        .collect(Collectors.toList());
-
-                LOGGER.info("Found {} unique image URLs inside the gallery container.", imageUrls.size());
-
-            } catch (TimeoutException e) {
-                LOGGER.warn("Image gallery container with selector '{}' was not found on the page.", gallerySelector);
+            Map<String, Object> page = runExtractionScript(driver, OLX_EXTRACTION_SCRIPT);
+            waits.finish();
+            if (page.get("text") == null) {
+                return listingNotOnPage("The OLX listing was not found on the page.", stringOf(page.get("html")));
             }
+            LOGGER.info("Obtained page text successfully.");
 
-            // Find the <img alt="Location"> element
-            WebElement locationIcon = driver.findElement(By.xpath("//img[@alt='Location']"));
-
-            // Find the following <div>
-            WebElement cityDiv = locationIcon.findElement(By.xpath("following-sibling::div"));
-
-            // Find the first <p> element inside that div
-            WebElement firstParagraph = cityDiv.findElement(By.xpath(".//p[1]"));
+            List<String> imageUrls = stringList(page.get("imageUrls"));
+            LOGGER.info("Found {} unique image URLs inside the gallery container.", imageUrls.size());
+            List<String> networkImageUrls = takeNetworkImageUrls(driver);
+            if (imageUrls.isEmpty() && !networkImageUrls.isEmpty()) {
+                LOGGER.info("No image URLs in the gallery, using the {} gallery photos the page requested.", networkImageUrls.size());
+                imageUrls = networkImageUrls;
+            }
 
-            var extractedData = "Page Text: " + text + "\n\n" +
-                                "City name: " + firstParagraph.getText() + "\n\n" +
-                                "Image URLs: " + imageUrls;
+            var extractedData = olxExtractedData(stringOf(page.get("text")), stringOf(page.get("city")), imageUrls);
 
-            return Map.of(
+            return withStructuredData(Map.of(
                     "status", "success",
                     "extractedData", extractedData
-            );
+            ), Jsoup.parse(stringOf(page.get("html")), fullUrl));
 
         } catch (Exception e) {
             LOGGER.error("An unexpected error occurred during scraping", e);
-            return Map.of("status", "error", "message", e.getMessage());
+            return Map.of("status", "error", "message", String.valueOf(e.getMessage()));
         } finally {
-            if (driver != null) {
-                driver.quit();
-                LOGGER.info("WebDriver has been closed.");
+            if (pooledDriver != null) {
+                DRIVER_POOL.release(pooledDriver);
             }
         }
     }
 
-    private Map<String, Object>  extractPubliData(String fullUrl) {
-        WebDriver driver = null;
+    private Map<String, Object>  extractPubliData(String fullUrl, boolean fastMode) {
+        WebDriverPool.PooledWebDriver pooledDriver = null;
         try {
-            driver = new ChromeDriver(chromeOptions);
-            WebDriverWait wait = new WebDriverWait(driver, Duration.ofSeconds(15)); // Increased wait time slightly
+            pooledDriver = DRIVER_POOL.borrow();
+            WebDriver driver = pooledDriver.driver();
 
+            takeNetworkImageUrls(driver); // Whatever an earlier page left behind
             driver.get(fullUrl);
+            PageWaits waits = PageWaits.start(driver, fastMode, ConfigLoader.getFastModePageDeadline());
 
-            wait.until(ExpectedConditions.presenceOfElementLocated(By.tagName("body")));
+            waits.element(By.tagName("body"));
             LOGGER.info("Page body loaded.");
 
-            // Simulate human scrolling : This is crucial for lazy-loading content and looks more natural.
-            simulateHumanScrolling(driver);
-
-            var mainContentSelector = "detail-left";
-            StringBuilder mainListingText = new StringBuilder();
-            mainListingText.append("Text from where to extract image URLS: ");
-            try {
-                WebElement mainContentContainer = wait.until(ExpectedConditions.presenceOfElementLocated(By.className(mainContentSelector)));
-                LOGGER.info("Found the main container.");
-                WebElement scriptElement = mainContentContainer.findElement(By.tagName("script"));
-                // 3. Get the content of the script element
-                var scriptContent = scriptElement.getAttribute("innerHTML");
-                mainListingText.append(scriptContent);
-
-                LOGGER.info("publi24: " + mainListingText);
-            } catch (TimeoutException e) {
-                LOGGER.warn("Main content container with selector '{}' was not found on the page.", mainContentSelector);
+            if (waits.fastMode()) {
+                waits.settle(null);
+            } else {
+                // Simulate human scrolling : This is crucial for lazy-loading content and looks more natural.
+                simulateHumanScrolling(driver);
             }
 
-            var ownerNameSelector = "user-profile-name";
-            mainListingText.append(" \n Owner name : ");
-            var ownerName = "";
-            try {
-                WebElement mainContentContainer = wait.until(ExpectedConditions.presenceOfElementLocated(By.className(ownerNameSelector)));
-                ownerName = mainContentContainer.getAttribute("innerHTML");
-                mainListingText.append(ownerName);
-                LOGGER.info("publi24: " + ownerName);
-            } catch (TimeoutException e) {
-                LOGGER.warn("Main content container with selector '{}' was not found on the page.", mainContentSelector);
+            // publi24 renders the listing on the server, so everything is there once the page has loaded
+            Map<String, Object> page = runExtractionScript(driver, PUBLI24_EXTRACTION_SCRIPT);
+            waits.finish();
+            if (page.get("listingName") == null) {
+                return listingNotOnPage("The publi24 listing was not found on the page.", stringOf(page.get("html")));
             }
+            LOGGER.info("Obtained page text successfully.");
 
-            mainListingText.append(" \n Listing name : ");
-            var listingName = "";
-            try {
-                listingName = driver.findElement(By.cssSelector("h1[itemprop='name']")).getText();
-                mainListingText.append(listingName);
-                LOGGER.info("publi24: " + listingName);
-            } catch (TimeoutException e) {
-                LOGGER.warn("Main content container with selector '{}' was not found on the page.", mainContentSelector);
-            }
+            var extractedData = publiExtractedData(
+                    stringOf(page.get("imageScript")),
+                    stringOf(page.get("ownerName")),
+                    stringOf(page.get("listingName")),
+                    stringOf(page.get("price")),
+                    stringOf(page.get("city")),
+                    stringOf(page.get("attributes")),
+                    stringOf(page.get("description")));
 
-            mainListingText.append(" \n Price : ");
-            var price = "";
-            try {
-                price = driver.findElement(By.cssSelector("[itemprop='price']")).getText();
-                mainListingText.append(price);
-                LOGGER.info("publi24: " + price);
-            } catch (TimeoutException e) {
-                LOGGER.warn("Main content container with selector '{}' was not found on the page.", mainContentSelector);
+            return withStructuredData(Map.of(
+                    "status", "success",
+                    "extractedData", extractedData
+            ), Jsoup.parse(stringOf(page.get("html")), fullUrl));
+
+        } catch (Exception e) {
+            LOGGER.error("An unexpected error occurred during scraping", e);
+            return Map.of("status", "error", "message", String.valueOf(e.getMessage()));
+        } finally {
+            if (pooledDriver != null) {
+                DRIVER_POOL.release(pooledDriver);
             }
+        }
+    }
 
-            mainListingText.append(" \n City : ");
-            var city = "";
-            try {
-                WebElement placeContainer = driver.findElement(By.cssSelector("div[itemtype='https://schema.org/Place']"));
-                List<WebElement> locationLinks = placeContainer.findElements(By.cssSelector("a[itemprop='url']"));
-                if (locationLinks.size() > 1) {
-                    // The city is the second link in the list.
-                    city = locationLinks.get(1).getText();
-                    LOGGER.info("The extracted city name is: " + city);
-                } else {
-                    LOGGER.info("Could not find a city. Found " + locationLinks.size() + " location links.");
-                }
-                mainListingText.append(city);
+    /**
+     * Runs a site's extraction script, which reads every field of the page in one WebDriver round trip.
+     * @return The fields by name; fields missing from the page are null.
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> runExtractionScript(WebDriver driver, String script) {
+        Object result = ((JavascriptExecutor) driver).executeScript(script);
+        return result instanceof Map ? (Map<String, Object>) result : Map.of();
+    }
 
-                LOGGER.info("publi24: " + city);
-            } catch (TimeoutException e) {
-                LOGGER.warn("Main content container with selector '{}' was not found on the page.", mainContentSelector);
+    private static String loadScript(String resource) {
+        try (var stream = HumanizedBrowsing.class.getResourceAsStream(resource)) {
+            if (stream == null) {
+                throw new IllegalStateException("Missing extraction script " + resource);
             }
+            return new String(stream.readAllBytes(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read extraction script " + resource, e);
+        }
+    }
 
-            var descriptionClass = "article-attributes";
-            mainListingText.append(" \n Description : ");
-            var description = "";
-            try {
-                WebElement mainContentContainer = wait.until(ExpectedConditions.presenceOfElementLocated(By.className(descriptionClass)));
-                description = mainContentContainer.getAttribute("innerHTML");
-                mainListingText.append(description);
-                LOGGER.info("publi24: " + description);
-            } catch (TimeoutException e) {
-                LOGGER.warn("Main content container with selector '{}' was not found on the page.", mainContentSelector);
-            }
+    private static String stringOf(Object value) {
+        return value == null ? "" : value.toString();
+    }
 
-            descriptionClass = "article-description";
-            try {
-                WebElement mainContentContainer = wait.until(ExpectedConditions.presenceOfElementLocated(By.className(descriptionClass)));
-                description = mainContentContainer.getAttribute("innerHTML");
-                mainListingText.append(description);
-                LOGGER.info("publi24: " + description);
-            } catch (TimeoutException e) {
-                LOGGER.warn("Main content container with selector '{}' was not found on the page.", mainContentSelector);
-            }
+    private static List<String> stringList(Object value) {
+        return value instanceof List<?> list ? list.stream().map(String::valueOf).toList() : List.of();
+    }
 
-            LOGGER.info("Obtained page text successfully.");
+    private Map<String, Object> extractOlxDataOverHttp(Document page) {
+        Element mainContent = page.selectFirst("[data-testid='main']");
+        Element cityParagraph = page.selectFirst("img[alt='Location'] ~ div p");
+        if (mainContent == null || mainContent.text().isBlank() || cityParagraph == null) {
+            return Map.of("status", "incomplete", "message", "The OLX listing is not in the server-rendered HTML.");
+        }
 
-            var extractedData = mainListingText.toString();
+        List<String> imageUrls = page.select(OLX_GALLERY_SELECTOR + " img").stream()
+                .map(img -> img.attr("src"))
+                .filter(src -> !src.isEmpty() && src.startsWith("http"))
+                .distinct()
+                .toList();
 
-            return Map.of(
-                    "status", "success",
-                    "extractedData", extractedData
-            );
+        return withStructuredData(Map.of(
+                "status", "success",
+                "extractedData", olxExtractedData(mainContent.text(), cityParagraph.text(), imageUrls)
+        ), page);
+    }
 
-        } catch (Exception e) {
-            LOGGER.error("An unexpected error occurred during scraping", e);
-            return Map.of("status", "error", "message", e.getMessage());
-        } finally {
-            if (driver != null) {
-                driver.quit();
-                LOGGER.info("WebDriver has been closed.");
-            }
+    private Map<String, Object> extractPubliDataOverHttp(Document page) {
+        Element script = page.selectFirst(".detail-left script");
+        Element listingName = page.selectFirst("h1[itemprop='name']");
+        Element description = page.selectFirst(".article-description");
+        if (script == null || listingName == null || description == null) {
+            return Map.of("status", "incomplete", "message", "The publi24 listing is not in the server-rendered HTML.");
+        }
+
+        Elements locationLinks = page.select("div[itemtype='https://schema.org/Place'] a[itemprop='url']");
+        return withStructuredData(Map.of(
+                "status", "success",
+                "extractedData", publiExtractedData(
+                        script.data(),
+                        htmlOf(page.selectFirst(".user-profile-name")),
+                        listingName.text(),
+                        textOf(page.selectFirst("[itemprop='price']")),
+                        locationLinks.size() > 1 ? locationLinks.get(1).text() : "",
+                        htmlOf(page.selectFirst(".article-attributes")),
+                        description.html())
+        ), page);
+    }
+
+    /**
+     * When the page embeds the listing as data, the formatter gets the fields read from it plus the free text,
+     * instead of the whole visible page. The fields are also returned as "structuredData", so they can be trusted
+     * over the formatter's reading of the text.
+     */
+    private Map<String, Object> withStructuredData(Map<String, Object> result, Document page) {
+        Map<String, Object> structuredData = STRUCTURED_DATA_EXTRACTOR.extract(page);
+        String contentHash = contentHash(structuredData);
+        // Without the description the formatter still needs the page text
+        if (!structuredData.containsKey("shortDescription")) {
+            return withContentHash(result, contentHash);
+        }
+
+        Map<String, Object> knownFields = new LinkedHashMap<>(structuredData);
+        String description = (String) knownFields.remove("shortDescription");
+        Object attributes = knownFields.remove(StructuredDataExtractor.ATTRIBUTES);
+        knownFields.remove("imageUrls");
+
+        StringBuilder extractedData = new StringBuilder();
+        extractedData.append("Known fields: ").append(knownFields).append("\n\n");
+        if (attributes != null) {
+            extractedData.append("Attributes: ").append(attributes).append("\n\n");
+        }
+        extractedData.append("Description: ").append(description);
+
+        LOGGER.info("Found {} fields in the page data, the formatter prompt shrinks from {} to {} characters.",
+                structuredData.size(), result.get("extractedData").toString().length(), extractedData.length());
+        return withContentHash(Map.of(
+                "status", "success",
+                "extractedData", extractedData.toString(),
+                "structuredData", structuredData
+        ), contentHash);
+    }
+
+    private static Map<String, Object> withContentHash(Map<String, Object> result, String contentHash) {
+        if (contentHash == null) {
+            return result;
         }
+        Map<String, Object> withContentHash = new HashMap<>(result);
+        withContentHash.put("contentHash", contentHash);
+        return withContentHash;
+    }
+
+    private static List<String> takeNetworkImageUrls(WebDriver driver) {
+        return driver instanceof ResourceBlockingChromeDriver blockingDriver ? blockingDriver.takeImageUrls() : List.of();
+    }
+
+    private static String olxExtractedData(String pageText, String city, List<String> imageUrls) {
+        return "Page Text: " + pageText + "\n\n" +
+               "City name: " + city + "\n\n" +
+               "Image URLs: " + imageUrls;
+    }
+
+    private static String publiExtractedData(String imageScript, String ownerName, String listingName, String price,
+                                             String city, String attributes, String description) {
+        return "Text from where to extract image URLS: " + imageScript +
+               " \n Owner name : " + ownerName +
+               " \n Listing name : " + listingName +
+               " \n Price : " + price +
+               " \n City : " + city +
+               " \n Description : " + attributes + description;
+    }
+
+    private static String textOf(Element element) {
+        return element == null ? "" : element.text();
+    }
+
+    private static String htmlOf(Element element) {
+        return element == null ? "" : element.html();
     }
 
     private Map<String, Object>  handleDefault(String url) {
         LOGGER.error(" !!!! No handler for: {}" , url);
-        return Map.of("status", "error", "message", "No handler for " + url);
+        return Map.of("status", "error", "message", "No handler for " + url, FAILURE_REASON, REASON_NO_HANDLER);
+    }
+
+    /**
+     * A page without the listing on it is either a block page (a captcha, "access denied") or a page the site served
+     * fine, e.g. for a listing that was removed.
+     */
+    private static Map<String, Object> listingNotOnPage(String message, String html) {
+        Document page = Jsoup.parse(html);
+        String visible = page.title() + " " + page.body().text();
+        boolean blocked = BLOCK_PAGE.matcher(visible.substring(0, Math.min(visible.length(), 1000))).find();
+        return Map.of("status", "error", "message", blocked ? "Blocked by the site: " + message : message,
+                FAILURE_REASON, blocked ? REASON_BLOCKED : REASON_LISTING_MISSING);
+    }
+
+    /**
+     * @return true if the failure says the site is in trouble or blocking us, so it counts towards opening the
+     * circuit; errors without a reason are network errors and timeouts.
+     */
+    private static boolean isSiteFailure(Map<String, Object> result) {
+        Object reason = result.get(FAILURE_REASON);
+        return !REASON_LISTING_MISSING.equals(reason) && !REASON_NO_HANDLER.equals(reason);
     }
 
     /**
@@ -0,0 +1,116 @@
+package com.testehan.adk.agents.cm.tools;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Downloads listing images concurrently through one shared HTTP/2 client, so connections to the image CDNs are reused
+ * between images and between listings. Every request has a timeout, every host has a cap on parallel downloads so we
+ * don't hammer a single CDN, and images over the size cap are dropped.
+ */
+public class ImageDownloader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ImageDownloader.class);
+
+    private final HttpClient httpClient;
+    private final Duration requestTimeout;
+    private final int perHostConcurrency;
+    private final int maxImageBytes;
+    private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public ImageDownloader(Duration connectTimeout, Duration requestTimeout, int perHostConcurrency, int maxImageBytes) {
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .connectTimeout(connectTimeout)
+                .executor(executor)
+                .build();
+        this.requestTimeout = requestTimeout;
+        this.perHostConcurrency = Math.max(1, perHostConcurrency);
+        this.maxImageBytes = maxImageBytes;
+    }
+
+    /**
+     * Downloads all the given images in parallel.
+     * @return The image bytes in the same order as the URLs, with null for every image that could not be downloaded.
+     */
+    public List<byte[]> downloadAll(List<String> imageUrls) {
+        long startNanos = System.nanoTime();
+        List<Future<byte[]>> downloads = new ArrayList<>();
+        for (String imageUrl : imageUrls) {
+            downloads.add(executor.submit(() -> download(imageUrl)));
+        }
+
+        List<byte[]> images = new ArrayList<>();
+        int downloaded = 0;
+        long totalBytes = 0;
+        for (int i = 0; i < downloads.size(); i++) {
+            try {
+                byte[] image = downloads.get(i).get();
+                images.add(image);
+                downloaded++;
+                totalBytes += image.length;
+            } catch (ExecutionException e) {
+                LOGGER.warn("Error processing image {} : {}", imageUrls.get(i), e.getCause().getMessage());
+                images.add(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                downloads.forEach(download -> download.cancel(true));
+                break;
+            }
+        }
+
+        LOGGER.info("Downloaded {} of {} images ({} KB) in {} ms.",
+                downloaded, imageUrls.size(), totalBytes / 1024, (System.nanoTime() - startNanos) / 1_000_000);
+        return images;
+    }
+
+    private byte[] download(String imageUrl) throws IOException, InterruptedException {
+        URI uri = URI.create(imageUrl);
+        Semaphore permits = hostPermits.computeIfAbsent(uri.getHost(), host -> new Semaphore(perHostConcurrency));
+        permits.acquire();
+        try {
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .timeout(requestTimeout)
+                    .GET()
+                    .build();
+            HttpResponse<InputStream> response = httpClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+
+            try (InputStream body = response.body()) {
+                if (response.statusCode() != 200) {
+                    throw new IOException("Image server returned status code " + response.statusCode());
+                }
+                long declaredLength = response.headers().firstValueAsLong("Content-Length").orElse(-1);
+                if (declaredLength > maxImageBytes) {
+                    throw new IOException("Image is " + declaredLength + " bytes, over the cap of " + maxImageBytes);
+                }
+                // Read one byte past the cap, so a response without Content-Length is still caught
+                byte[] image = body.readNBytes(maxImageBytes + 1);
+                if (image.length > maxImageBytes) {
+                    throw new IOException("Image is over the cap of " + maxImageBytes + " bytes");
+                }
+                return image;
+            }
+        } finally {
+            permits.release();
+        }
+    }
+}
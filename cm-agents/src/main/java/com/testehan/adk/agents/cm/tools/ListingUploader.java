@@ -3,6 +3,8 @@ package com.testehan.adk.agents.cm.tools;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.testehan.adk.agents.cm.config.ConfigLoader;
+import com.testehan.adk.agents.cm.metrics.Metrics;
 import org.jetbrains.annotations.NotNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,13 +12,10 @@ import org.springframework.core.io.ByteArrayResource;
 import org.springframework.http.*;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
-import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpStatusCodeException;
+import org.springframework.web.client.ResourceAccessException;
 import org.springframework.web.client.RestTemplate;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
 import java.time.LocalDate;
 import java.time.format.DateTimeFormatter;
 import java.util.List;
@@ -28,7 +27,33 @@ public class ListingUploader {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(ListingUploader.class);
 
-    public void upload(String listingJson, String listingSourceUrl) {
+    private static final ImageDownloader IMAGE_DOWNLOADER = new ImageDownloader(
+            ConfigLoader.getImageDownloadConnectTimeout(),
+            ConfigLoader.getImageDownloadRequestTimeout(),
+            ConfigLoader.getImageDownloadPerHostConcurrency(),
+            ConfigLoader.getImageDownloadMaxBytes());
+
+    public enum UploadResult {
+        UPLOADED,
+        // 429, 5xx and network errors, the same upload may succeed later
+        RETRYABLE_FAILURE,
+        // the listing itself is the problem, uploading it again won't help
+        PERMANENT_FAILURE
+    }
+
+    public UploadResult upload(String listingJson, String listingSourceUrl) {
+        long startNanos = System.nanoTime();
+        UploadResult result = uploadListing(listingJson, listingSourceUrl);
+        // Includes the image downloads, which are part of building the request
+        Metrics.histogram("cm_upload_duration_seconds", "Time to upload a listing with its images, by result.",
+                "result", result.name().toLowerCase()).observeNanos(System.nanoTime() - startNanos);
+        if (result != UploadResult.UPLOADED) {
+            Metrics.recordError("upload");
+        }
+        return result;
+    }
+
+    private UploadResult uploadListing(String listingJson, String listingSourceUrl) {
         ObjectMapper objectMapper = new ObjectMapper();
         objectMapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
         try {
@@ -39,8 +64,8 @@ public class ListingUploader {
                 // Prepare the MultipartFile[] for images (if any)
                 MultiValueMap<String, Object> body = getPostListingRequestBody(listing, listingSourceUrl);
 
-                // Create a RestTemplate instance
-                RestTemplate restTemplate = new RestTemplate();
+                // The shared RestTemplate reuses the connections of the API client
+                RestTemplate restTemplate = CasaMiaApiClient.shared().uploadRestTemplate();
                 String endpoint = getApiEndpointPostListing();
 
                 // Prepare the request
@@ -59,14 +84,20 @@ public class ListingUploader {
                 } else {
                     LOGGER.info("Failed to save listing. Status code: {}  body: {}", response.getStatusCode(), response.getBody());
                 }
+                return response.getStatusCode().is2xxSuccessful() ? UploadResult.UPLOADED : UploadResult.PERMANENT_FAILURE;
 
-                Thread.sleep(40000);
-            } catch (HttpClientErrorException e) {
+            } catch (HttpStatusCodeException e) {
+                LOGGER.error("Exception {} ", e.getMessage());
+                HttpStatusCode statusCode = e.getStatusCode();
+                return statusCode.value() == 429 || statusCode.is5xxServerError() ? UploadResult.RETRYABLE_FAILURE : UploadResult.PERMANENT_FAILURE;
+            } catch (ResourceAccessException e) {
                 LOGGER.error("Exception {} ", e.getMessage());
+                return UploadResult.RETRYABLE_FAILURE;
             }
 
-        } catch (JsonProcessingException | InterruptedException e) {
+        } catch (JsonProcessingException e) {
             LOGGER.error("Exception {} ", e.getMessage());
+            return UploadResult.PERMANENT_FAILURE;
         }
     }
 
@@ -88,31 +119,29 @@ public class ListingUploader {
         body.add("availableFrom", getAvailableFromToday());
 
         if (listing.imageUrls != null) {
+            List<String> imageUrls = listing.imageUrls.stream()
+                    .filter(imageUrl -> imageUrl != null && !imageUrl.contains("full-screen.5555ba1b6.svg"))
+                    .toList();
+            List<byte[]> images = IMAGE_DOWNLOADER.downloadAll(imageUrls);
+            recordImageDownloads(images);
+
+            // The images keep the order they have in the listing; the ones that failed to download are left out
             int i = 1;
-            for (String imageUrl : listing.imageUrls) {
-                try {
-                    if(!imageUrl.contains("full-screen.5555ba1b6.svg")) {
-                        // Download image from the URL
-                        URL url = new URL(imageUrl);
-                        InputStream inputStream = url.openStream();
-                        byte[] imageBytes = toByteArray(inputStream); // Convert InputStream to byte array
-
-                        final int j = i;
-                        ByteArrayResource fileResource = new ByteArrayResource(imageBytes) {
-                            @Override
-                            public String getFilename() {
-                                return "image" + j + ".jpg"; // or whatever file name and extension you want
-                            }
-                        };
-                        i++;
-
-                        // Add to the body
-                        body.add("apartmentImages", fileResource);
-                    }
-                } catch (Exception e) {
-                    System.out.println("Error processing image " + imageUrl);
-                    System.out.println(e.getMessage());
+            for (byte[] imageBytes : images) {
+                if (imageBytes == null) {
+                    continue;
                 }
+                final int j = i;
+                ByteArrayResource fileResource = new ByteArrayResource(imageBytes) {
+                    @Override
+                    public String getFilename() {
+                        return "image" + j + ".jpg"; // or whatever file name and extension you want
+                    }
+                };
+                i++;
+
+                // Add to the body
+                body.add("apartmentImages", fileResource);
             }
         }
 
@@ -120,15 +149,19 @@ public class ListingUploader {
         return body;
     }
 
-    // Helper method to convert InputStream to byte array
-    private static byte[] toByteArray(InputStream inputStream) throws IOException {
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        int read;
-        byte[] bytes = new byte[1024];
-        while ((read = inputStream.read(bytes)) != -1) {
-            byteArrayOutputStream.write(bytes, 0, read);
+    private static void recordImageDownloads(List<byte[]> images) {
+        long bytes = 0;
+        int failed = 0;
+        for (byte[] image : images) {
+            if (image == null) {
+                failed++;
+            } else {
+                bytes += image.length;
+            }
         }
-        return byteArrayOutputStream.toByteArray();
+        Metrics.counter("cm_image_bytes_total", "Bytes of listing images downloaded for upload.").add(bytes);
+        Metrics.counter("cm_images_total", "Listing images, by download outcome.", "outcome", "downloaded").add(images.size() - failed);
+        Metrics.counter("cm_images_total", "Listing images, by download outcome.", "outcome", "failed").add(failed);
     }
 
     private static String getAvailableFromToday(){
@@ -0,0 +1,130 @@
+package com.testehan.adk.agents.cm.tools;
+
+import org.openqa.selenium.By;
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.TimeoutException;
+import org.openqa.selenium.WebDriver;
+import org.openqa.selenium.WebElement;
+import org.openqa.selenium.support.ui.ExpectedConditions;
+import org.openqa.selenium.support.ui.WebDriverWait;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The waits of one browser page, from the moment it loaded until everything was read from it.
+ * In human mode every element gets its own 15 second wait, as the handlers always did. In fast mode the whole page
+ * shares one short deadline, so a missing element only costs what is left of it, and {@link #settle(String)} waits
+ * on the page actually being ready instead of on scroll pauses. The time spent per page is recorded for each mode,
+ * so the two can be compared.
+ */
+public class PageWaits {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PageWaits.class);
+
+    private static final Duration HUMAN_ELEMENT_TIMEOUT = Duration.ofSeconds(15);
+    private static final Duration POLL_INTERVAL = Duration.ofMillis(250);
+
+    // Everything the page is still loading shows up in one of these: the document state, the number of resources
+    // fetched so far and the number of gallery images. The page has settled once none of them changes between polls.
+    private static final String READINESS_SCRIPT =
+            "return document.readyState + ':' + performance.getEntriesByType('resource').length + ':' + " +
+            "(arguments[0] ? document.querySelectorAll(arguments[0] + ' img').length : 0);";
+
+    private static final LongAdder FAST_PAGES = new LongAdder();
+    private static final LongAdder FAST_NANOS = new LongAdder();
+    private static final LongAdder HUMAN_PAGES = new LongAdder();
+    private static final LongAdder HUMAN_NANOS = new LongAdder();
+
+    private final WebDriver driver;
+    private final boolean fastMode;
+    private final long startNanos;
+    private final long deadlineNanos;
+
+    private PageWaits(WebDriver driver, boolean fastMode, Duration deadline) {
+        this.driver = driver;
+        this.fastMode = fastMode;
+        this.startNanos = System.nanoTime();
+        this.deadlineNanos = startNanos + deadline.toNanos();
+    }
+
+    /**
+     * Starts timing the waits of a page; call it as soon as the page has loaded.
+     * @param deadline The time the whole page gets in fast mode.
+     */
+    public static PageWaits start(WebDriver driver, boolean fastMode, Duration deadline) {
+        return new PageWaits(driver, fastMode, deadline);
+    }
+
+    public boolean fastMode() {
+        return fastMode;
+    }
+
+    /**
+     * Waits until the element is present.
+     * @throws TimeoutException When it didn't show up in time; in fast mode, when the page deadline has passed.
+     */
+    public WebElement element(By locator) {
+        Duration timeout = fastMode ? remaining() : HUMAN_ELEMENT_TIMEOUT;
+        return new WebDriverWait(driver, timeout, POLL_INTERVAL).until(ExpectedConditions.presenceOfElementLocated(locator));
+    }
+
+    /**
+     * Fast mode only: scrolls to the bottom once, so lazy-loaded content starts loading, then waits until the
+     * document is complete, no new resources are being fetched and the gallery holds a stable number of images.
+     * Gives up quietly at the page deadline; whatever has loaded by then is read.
+     * @param galleryCss The CSS selector of the image gallery, or null if the page has none worth waiting for.
+     */
+    public void settle(String galleryCss) {
+        JavascriptExecutor js = (JavascriptExecutor) driver;
+        js.executeScript("window.scrollTo(0, document.body.scrollHeight);");
+
+        String previous = null;
+        while (System.nanoTime() < deadlineNanos) {
+            String current = String.valueOf(js.executeScript(READINESS_SCRIPT, galleryCss));
+            if (current.startsWith("complete") && Objects.equals(current, previous)) {
+                LOGGER.info("Page settled after {} ms ({}).", elapsedMillis(), current);
+                return;
+            }
+            previous = current;
+            try {
+                Thread.sleep(POLL_INTERVAL.toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        LOGGER.info("Page did not settle within its deadline, reading it as it is ({}).", previous);
+    }
+
+    /**
+     * Records the time the page took in its mode. Call it once everything was read from the page.
+     */
+    public void finish() {
+        long elapsed = System.nanoTime() - startNanos;
+        (fastMode ? FAST_PAGES : HUMAN_PAGES).increment();
+        (fastMode ? FAST_NANOS : HUMAN_NANOS).add(elapsed);
+    }
+
+    public static String describe() {
+        long fastPages = FAST_PAGES.sum();
+        long humanPages = HUMAN_PAGES.sum();
+        long fastAvgMs = fastPages == 0 ? 0 : FAST_NANOS.sum() / fastPages / 1_000_000;
+        long humanAvgMs = humanPages == 0 ? 0 : HUMAN_NANOS.sum() / humanPages / 1_000_000;
+        // The saving can only be told once both modes have been used
+        String saved = fastPages == 0 || humanPages == 0 ? "n/a" : (humanAvgMs - fastAvgMs) + " ms";
+        return String.format("PageWaits[fast=%d (avg %d ms), human=%d (avg %d ms), savedPerPage=%s]",
+                fastPages, fastAvgMs, humanPages, humanAvgMs, saved);
+    }
+
+    private Duration remaining() {
+        return Duration.ofNanos(Math.max(0, deadlineNanos - System.nanoTime()));
+    }
+
+    private long elapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1_000_000;
+    }
+}
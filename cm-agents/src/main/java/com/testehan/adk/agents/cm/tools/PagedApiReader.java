@@ -0,0 +1,189 @@
+package com.testehan.adk.agents.cm.tools;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.JavaType;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads JSON arrays from the CasaMia API one item at a time. The response body is parsed as a stream, so an item is
+ * handed over as soon as it has been read and neither the whole body nor the whole list is ever held in memory.
+ * With a page size configured the endpoint is read page by page (Spring style "page" and "size" query parameters)
+ * until a page comes back short or empty; with page size 0 it is read in one request. A backend that ignores the
+ * paging parameters is caught by a page that repeats the one before it, and by the maximum number of pages.
+ */
+public class PagedApiReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PagedApiReader.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    public interface ItemHandler<T> {
+        void accept(T item) throws InterruptedException;
+    }
+
+    /**
+     * Thrown when the API answers with anything but 200.
+     */
+    public static class ApiStatusException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        private final int statusCode;
+
+        public ApiStatusException(String endpoint, int statusCode) {
+            super("API call to " + endpoint + " failed with status code: " + statusCode);
+            this.statusCode = statusCode;
+        }
+
+        public int statusCode() {
+            return statusCode;
+        }
+    }
+
+    private final CasaMiaApiClient apiClient;
+    private final int pageSize;
+    private final int maxPages;
+
+    public PagedApiReader(CasaMiaApiClient apiClient, int pageSize, int maxPages) {
+        this.apiClient = apiClient;
+        this.pageSize = Math.max(0, pageSize);
+        this.maxPages = Math.max(1, maxPages);
+    }
+
+    /**
+     * The items of the endpoint's JSON array, read while they are iterated: a page is only requested once the items
+     * of the page before it were taken, so no more than one page is held in memory. An error ends the iteration and
+     * is logged, the items read until then stay valid.
+     */
+    public <T> Iterable<T> items(String endpoint, TypeReference<T> itemType) {
+        JavaType javaType = OBJECT_MAPPER.getTypeFactory().constructType(itemType);
+        return () -> new PageIterator<>(endpoint, javaType);
+    }
+
+    private String pageUri(String endpoint, int page) {
+        if (pageSize == 0) {
+            return endpoint;
+        }
+        String separator = endpoint.contains("?") ? "&" : "?";
+        return endpoint + separator + "page=" + page + "&size=" + pageSize;
+    }
+
+    private boolean repeats(String endpoint, int page, List<?> items, List<?> previousPage) {
+        if (!items.isEmpty() && items.equals(previousPage)) {
+            LOGGER.warn("Page {} of {} repeats the page before it, the endpoint seems to ignore paging. Stopping there.", page, endpoint);
+            return true;
+        }
+        return false;
+    }
+
+    private boolean isLastPage(String endpoint, int page, List<?> items) {
+        LOGGER.debug("Read page {} of {} with {} items.", page, endpoint, items.size());
+        if (pageSize == 0 || items.size() < pageSize) {
+            return true;
+        }
+        if (page + 1 >= maxPages) {
+            LOGGER.warn("Stopped reading {} after {} pages, there may be more items.", endpoint, maxPages);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Holds the page being iterated and the one before it, to spot a repeated page.
+     */
+    private class PageIterator<T> implements Iterator<T> {
+        private final String endpoint;
+        private final JavaType itemType;
+        private List<T> currentPage = List.of();
+        private List<T> previousPage = List.of();
+        private int index;
+        private int page;
+        private boolean lastPageRead;
+
+        private PageIterator(String endpoint, JavaType itemType) {
+            this.endpoint = endpoint;
+            this.itemType = itemType;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (index >= currentPage.size()) {
+                if (lastPageRead) {
+                    return false;
+                }
+                readNextPage();
+            }
+            return true;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return currentPage.get(index++);
+        }
+
+        private void readNextPage() {
+            previousPage = currentPage;
+            currentPage = List.of();
+            index = 0;
+            List<T> items = new ArrayList<>();
+            try {
+                PagedApiReader.this.<T>readPage(pageUri(endpoint, page), itemType, items::add);
+            } catch (IOException e) {
+                LOGGER.error("Could not read page {} of {}, stopping there.", page, endpoint, e);
+                lastPageRead = true;
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                lastPageRead = true;
+                return;
+            }
+            if (repeats(endpoint, page, items, previousPage)) {
+                lastPageRead = true;
+                return;
+            }
+            lastPageRead = isLastPage(endpoint, page, items);
+            currentPage = items;
+            page++;
+        }
+    }
+
+    private <T> int readPage(String uri, JavaType itemType, ItemHandler<T> handler) throws IOException, InterruptedException {
+        HttpRequest request = apiClient.authorizedRequest(uri)
+                .header("Accept", "application/json")
+                .build();
+        HttpResponse<InputStream> response = apiClient.send(request, HttpResponse.BodyHandlers.ofInputStream());
+
+        try (InputStream body = response.body();
+             JsonParser parser = OBJECT_MAPPER.createParser(body)) {
+            if (response.statusCode() != 200) {
+                throw new ApiStatusException(uri, response.statusCode());
+            }
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new IOException("Expected a JSON array from " + uri + " but got " + parser.currentToken());
+            }
+
+            int read = 0;
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                T item = OBJECT_MAPPER.readValue(parser, itemType);
+                handler.accept(item);
+                read++;
+            }
+            return read;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.testehan.adk.agents.cm.tools;
+
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Shrinks the scraped text before it goes into the formatter prompt, since the prompt size drives the formatter latency.
+ * HTML is turned into plain text, whitespace is collapsed, repeated lines (navigation, footers) are dropped, and image
+ * URLs are taken out of the text and returned on the side, so they don't cost tokens. What is left is cut to the token
+ * budget.
+ */
+public class PromptPreprocessor {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PromptPreprocessor.class);
+
+    private static final Pattern HTML_TAG = Pattern.compile("<[a-zA-Z/!][^>]*>");
+    // Plain image files, and OLX's extension-less ".../image;s=1000x700" links
+    private static final Pattern IMAGE_URL = Pattern.compile(
+            "https?://[^\\s\"'<>()\\[\\],]+?(?:\\.(?:jpe?g|png|webp|avif)|/image;s=\\d+x\\d+)[^\\s\"'<>()\\[\\],]*",
+            Pattern.CASE_INSENSITIVE);
+    // What is left of a list or a quoted string once the URLs are gone, e.g. "['', '']"
+    private static final Pattern EMPTY_LEFTOVERS = Pattern.compile("\\[[\\s,'\"]*]|(['\"])\\1");
+
+    // Roughly 4 characters per token for the Latin-script text we send; close enough for budgeting and comparisons
+    private static final int CHARS_PER_TOKEN = 4;
+
+    public record PreparedText(String text, List<String> imageUrls, int originalTokens, int estimatedTokens) {
+    }
+
+    private final int maxTokens;
+
+    public PromptPreprocessor(int maxTokens) {
+        this.maxTokens = maxTokens;
+    }
+
+    public static int estimateTokens(String text) {
+        return (text.length() + CHARS_PER_TOKEN - 1) / CHARS_PER_TOKEN;
+    }
+
+    public PreparedText prepare(String scrapedText) {
+        String text = HTML_TAG.matcher(scrapedText).find() ? htmlToText(scrapedText) : scrapedText;
+
+        Set<String> imageUrls = new LinkedHashSet<>();
+        Matcher matcher = IMAGE_URL.matcher(text);
+        while (matcher.find()) {
+            imageUrls.add(matcher.group());
+        }
+        text = EMPTY_LEFTOVERS.matcher(IMAGE_URL.matcher(text).replaceAll("")).replaceAll("");
+
+        Set<String> lines = new LinkedHashSet<>();
+        for (String line : text.split("\\R")) {
+            String collapsed = line.replaceAll("[\\s\\u00A0]+", " ").trim();
+            if (!collapsed.isEmpty() && !isMostlySymbols(collapsed)) {
+                lines.add(collapsed);
+            }
+        }
+        String prepared = String.join("\n", lines);
+
+        int maxChars = maxTokens * CHARS_PER_TOKEN;
+        if (maxTokens > 0 && prepared.length() > maxChars) {
+            int cut = prepared.lastIndexOf('\n', maxChars);
+            prepared = prepared.substring(0, cut > 0 ? cut : maxChars);
+            LOGGER.warn("Scraped text is over the budget of {} tokens, it was cut to {} characters.", maxTokens, prepared.length());
+        }
+
+        return new PreparedText(prepared, new ArrayList<>(imageUrls), estimateTokens(scrapedText), estimateTokens(prepared));
+    }
+
+    private static String htmlToText(String html) {
+        // Block ends become line breaks, otherwise paragraphs would run into each other
+        String withBreaks = html.replaceAll("(?i)<br\\s*/?>", "\n").replaceAll("(?i)</(p|div|li|h\\d|tr)>", "\n");
+        Document document = Jsoup.parseBodyFragment(withBreaks);
+        document.select("script, style, noscript, svg").remove();
+        return document.body().wholeText();
+    }
+
+    // Script leftovers and separators; real text is mostly letters and digits
+    private static boolean isMostlySymbols(String line) {
+        long letters = line.chars().filter(Character::isLetterOrDigit).count();
+        return letters * 2 < line.length();
+    }
+}
@@ -0,0 +1,107 @@
+package com.testehan.adk.agents.cm.tools;
+
+import org.openqa.selenium.chrome.ChromeDriver;
+import org.openqa.selenium.chrome.ChromeOptions;
+import org.openqa.selenium.devtools.NetworkInterceptor;
+import org.openqa.selenium.remote.http.HttpRequest;
+import org.openqa.selenium.remote.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A Chrome session that doesn't download what the scrapers never look at. Every request of the page goes through a
+ * DevTools (CDP) request interceptor; images, media, fonts and analytics/ad trackers are answered with an empty
+ * response instead of being fetched, everything else proceeds as usual. The page still gets its img elements and
+ * their src attributes, so nothing is lost for the scrapers, and the listing photos the page asked for are recorded
+ * on the side for {@link #takeImageUrls()}.
+ */
+public final class ResourceBlockingChromeDriver extends ChromeDriver {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(ResourceBlockingChromeDriver.class);
+
+    private static final Pattern IMAGE = Pattern.compile("\\.(jpe?g|png|gif|webp|avif|svg|ico)$|/image;s=\\d+x\\d+$");
+    // OLX serves the gallery photos as ".../image;s=WxH", logos, sprites and icons come as plain files
+    private static final Pattern GALLERY_PHOTO = Pattern.compile("/image;s=(\\d+)x(\\d+)$");
+    private static final int MIN_PHOTO_SIDE = 300;
+    private static final Pattern MEDIA_OR_FONT = Pattern.compile("\\.(mp4|webm|m3u8|mp3|ogg|woff2?|ttf|otf|eot)$");
+    private static final List<String> TRACKER_HOSTS = List.of(
+            "google-analytics.com", "googletagmanager.com", "googlesyndication.com", "doubleclick.net",
+            "facebook.net", "facebook.com/tr", "hotjar.com", "clarity.ms", "criteo.", "adservice.google", "gemius.");
+
+    private static final LongAdder BLOCKED_REQUESTS = new LongAdder();
+    private static final LongAdder PASSED_REQUESTS = new LongAdder();
+
+    private final Set<String> imageUrls = new LinkedHashSet<>();
+    private final NetworkInterceptor interceptor;
+
+    public ResourceBlockingChromeDriver(ChromeOptions options) {
+        super(options);
+        this.interceptor = new NetworkInterceptor(this, this::intercept);
+    }
+
+    /**
+     * @return The gallery photo URLs requested since the last call, in the order the page asked for them. Thumbnails
+     * smaller than {@value #MIN_PHOTO_SIDE} pixels on a side are left out.
+     */
+    public synchronized List<String> takeImageUrls() {
+        List<String> taken = new ArrayList<>(imageUrls);
+        imageUrls.clear();
+        return taken;
+    }
+
+    public static String describe() {
+        return String.format("ResourceBlocking[blocked=%d, passed=%d]", BLOCKED_REQUESTS.sum(), PASSED_REQUESTS.sum());
+    }
+
+    @Override
+    public void quit() {
+        try {
+            interceptor.close();
+        } catch (Exception e) {
+            LOGGER.debug("Could not close the request interceptor. {}", e.getMessage());
+        }
+        super.quit();
+    }
+
+    private HttpResponse intercept(HttpRequest request) {
+        String url = request.getUri();
+        // The extension is matched on the path, query strings carry sizes and cache busters
+        String path = url.toLowerCase(Locale.ROOT).replaceFirst("[?#].*$", "");
+        String accept = request.getHeader("Accept");
+        boolean image = IMAGE.matcher(path).find() || (accept != null && accept.startsWith("image/"));
+
+        if (image && isGalleryPhoto(path)) {
+            synchronized (this) {
+                imageUrls.add(url);
+            }
+        }
+        if (image || MEDIA_OR_FONT.matcher(path).find() || TRACKER_HOSTS.stream().anyMatch(path::contains)) {
+            BLOCKED_REQUESTS.increment();
+            return new HttpResponse().setStatus(HttpURLConnection.HTTP_NO_CONTENT);
+        }
+        PASSED_REQUESTS.increment();
+        return NetworkInterceptor.PROCEED_WITH_REQUEST;
+    }
+
+    private static boolean isGalleryPhoto(String path) {
+        Matcher photo = GALLERY_PHOTO.matcher(path);
+        if (!photo.find()) {
+            return false;
+        }
+        try {
+            return Integer.parseInt(photo.group(1)) >= MIN_PHOTO_SIDE && Integer.parseInt(photo.group(2)) >= MIN_PHOTO_SIDE;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+}
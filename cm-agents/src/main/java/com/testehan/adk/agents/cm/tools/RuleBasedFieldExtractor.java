@@ -0,0 +1,205 @@
+package com.testehan.adk.agents.cm.tools;
+
+import java.text.Normalizer;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.IntPredicate;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the numeric fields and the city from Romanian listing text with plain rules, so the formatter doesn't have to.
+ * A labelled value ("Suprafata utila: 54 mp", "Etaj: 3") wins over values found in the running text; values found in
+ * the running text are only used when every mention agrees, so "2 camere" in the title and "3 camere" in the
+ * description leave the field to the formatter. The room count also needs at least two mentions, a single
+ * "2 camere" may as well be about a neighbouring flat. Fields that can't be read reliably are left out.
+ */
+public class RuleBasedFieldExtractor {
+
+    /**
+     * The fields these rules can fill.
+     */
+    public static final List<String> FIELDS = List.of("price", "surface", "noOfRooms", "floor", "city");
+
+    // Thousands are grouped with a dot (a no-break space is turned into one by normalize). A number right after
+    // another one and a plain space ("2 500") is ambiguous and not read at all.
+    private static final String NUMBER = "(?<!\\d[ .,]?)(\\d{1,3}(?:\\.\\d{3})+(?!\\d)|\\d+)(?:[.,]\\d+)?";
+
+    private static final Pattern LABELLED_PRICE = Pattern.compile("\\b(?:pret|chirie|price)\\s*:?\\s*" + NUMBER);
+    private static final Pattern PRICE = Pattern.compile(NUMBER + "\\s*(?:€|eur(?:o)?\\b)");
+    private static final Pattern PRICE_AFTER_CURRENCY = Pattern.compile("(?:€|\\beur(?:o)?)\\s*" + NUMBER);
+
+    private static final Pattern LABELLED_SURFACE = Pattern.compile("\\bsuprafata(?: utila)?\\s*:?\\s*" + NUMBER);
+    private static final Pattern SURFACE = Pattern.compile(NUMBER + "\\s*(?:mp\\b|m2\\b|m²|mpu\\b|metri patrati)");
+
+    private static final Pattern LABELLED_ROOMS = Pattern.compile("\\b(?:numar(?:ul)? (?:de )?camere|nr\\.? camere|camere)\\s*:\\s*(\\d+)");
+    private static final Pattern ROOMS = Pattern.compile("\\b(\\d+|o|una|doua|trei|patru|cinci)\\s+camer[ae]\\b");
+    private static final int MIN_ROOM_MENTIONS = 2;
+    private static final Pattern STUDIO = Pattern.compile("\\bgarsonier");
+
+    private static final Pattern LABELLED_FLOOR = Pattern.compile("\\b(?:etaj|nivel)\\s*:\\s*(parter|demisol|subsol|-?\\d+)");
+    private static final Pattern FLOOR = Pattern.compile("\\b(?:etajul|etaj|et\\.)\\s*(\\d+)\\b|\\b(?:la |situat la |este la )?(parter)\\b|\\b(demisol|subsol)\\b");
+
+    private static final Pattern LABELLED_CITY = Pattern.compile("^\\s*(?:city name|city|oras|localitate)\\s*:\\s*(.+)$", Pattern.MULTILINE);
+
+    // Spelling as the CasaMia backend expects it, keyed by the accent-free lower case forms seen on the sites
+    private static final Map<String, String> CITIES = buildCities();
+
+    private static final Map<String, Integer> NUMBER_WORDS = Map.of(
+            "o", 1, "una", 1, "doua", 2, "trei", 3, "patru", 4, "cinci", 5);
+
+    /**
+     * @return The fields read from the text, keyed by listing schema field name.
+     */
+    public Map<String, Object> extract(String text) {
+        String normalized = normalize(text);
+        Map<String, Object> fields = new LinkedHashMap<>();
+
+        labelledOrAgreed(normalized, price -> price >= 10 && price <= 10_000_000, LABELLED_PRICE, PRICE, PRICE_AFTER_CURRENCY)
+                .ifPresent(price -> fields.put("price", price));
+        labelledOrAgreed(normalized, surface -> surface >= 8 && surface <= 2_000, LABELLED_SURFACE, SURFACE)
+                .ifPresent(surface -> fields.put("surface", surface));
+        rooms(normalized).ifPresent(rooms -> fields.put("noOfRooms", rooms));
+        floor(normalized).ifPresent(floor -> fields.put("floor", floor));
+        city(normalized).ifPresent(city -> fields.put("city", city));
+        return fields;
+    }
+
+    /**
+     * @return The city as the backend spells it, or empty if it isn't a known city.
+     */
+    public static Optional<String> canonicalCity(String city) {
+        return Optional.ofNullable(CITIES.get(normalize(city).trim()));
+    }
+
+    // The first labelled value in range wins, e.g. "Pret: 5" from a table of fees doesn't hide "Pret: 450 EUR"
+    private static Optional<Integer> labelledOrAgreed(String text, IntPredicate inRange, Pattern labelled, Pattern... unlabelled) {
+        Matcher matcher = labelled.matcher(text);
+        while (matcher.find()) {
+            Optional<Integer> value = toInt(matcher.group(1)).filter(inRange::test);
+            if (value.isPresent()) {
+                return value;
+            }
+        }
+        Set<Integer> values = new LinkedHashSet<>();
+        for (Pattern pattern : unlabelled) {
+            Matcher unlabelledMatcher = pattern.matcher(text);
+            while (unlabelledMatcher.find()) {
+                Optional<Integer> value = toInt(unlabelledMatcher.group(1));
+                if (value.isEmpty()) {
+                    return Optional.empty();
+                }
+                values.add(value.get());
+            }
+        }
+        return values.size() == 1 ? Optional.of(values.iterator().next()).filter(inRange::test) : Optional.empty();
+    }
+
+    private static Optional<Integer> rooms(String text) {
+        Matcher labelled = LABELLED_ROOMS.matcher(text);
+        if (labelled.find()) {
+            return Optional.of(Integer.parseInt(labelled.group(1)));
+        }
+        Set<Integer> values = new LinkedHashSet<>();
+        int mentions = 0;
+        Matcher matcher = ROOMS.matcher(text);
+        while (matcher.find()) {
+            String count = matcher.group(1);
+            values.add(NUMBER_WORDS.containsKey(count) ? NUMBER_WORDS.get(count) : Integer.parseInt(count));
+            mentions++;
+        }
+        Matcher studio = STUDIO.matcher(text);
+        while (studio.find()) {
+            values.add(1);
+            mentions++;
+        }
+        return mentions >= MIN_ROOM_MENTIONS && values.size() == 1 && values.iterator().next() <= 10
+                ? Optional.of(values.iterator().next())
+                : Optional.empty();
+    }
+
+    private static Optional<Integer> floor(String text) {
+        Matcher labelled = LABELLED_FLOOR.matcher(text);
+        if (labelled.find()) {
+            return Optional.of(floorValue(labelled.group(1)));
+        }
+        Set<Integer> values = new LinkedHashSet<>();
+        Matcher matcher = FLOOR.matcher(text);
+        while (matcher.find()) {
+            if (matcher.group(1) != null) {
+                values.add(Integer.parseInt(matcher.group(1)));
+            } else {
+                values.add(floorValue(matcher.group(2) != null ? matcher.group(2) : matcher.group(3)));
+            }
+        }
+        return values.size() == 1 && values.iterator().next() <= 50 ? Optional.of(values.iterator().next()) : Optional.empty();
+    }
+
+    private static int floorValue(String floor) {
+        return switch (floor) {
+            case "parter" -> 0;
+            case "demisol", "subsol" -> -1;
+            default -> Integer.parseInt(floor);
+        };
+    }
+
+    private static Optional<String> city(String text) {
+        Matcher labelled = LABELLED_CITY.matcher(text);
+        while (labelled.find()) {
+            // "City name: Cluj-Napoca, Zorilor" or "Cluj-Napoca - Marasti"
+            String value = labelled.group(1).split("[,\\-–(]")[0];
+            Optional<String> city = canonicalCity(value);
+            if (city.isEmpty()) {
+                city = canonicalCity(labelled.group(1).split("[,(]")[0]);
+            }
+            if (city.isPresent()) {
+                return city;
+            }
+        }
+        return Optional.empty();
+    }
+
+    private static Optional<Integer> toInt(String number) {
+        try {
+            return Optional.of(Integer.parseInt(number.replace(".", "")));
+        } catch (NumberFormatException e) {
+            // More digits than any listing value has
+            return Optional.empty();
+        }
+    }
+
+    private static String normalize(String text) {
+        // Lower case without diacritics, so "Suprafață" and "suprafata" match the same rule
+        String withoutDiacritics = Normalizer.normalize(text, Normalizer.Form.NFD).replaceAll("\\p{M}", "");
+        // A no-break space between digit groups is a thousands separator, anywhere else it is a plain space
+        return withoutDiacritics.toLowerCase(Locale.ROOT)
+                .replaceAll("(?<=\\d)\u00A0(?=\\d{3}(?!\\d))", ".")
+                .replace('\u00A0', ' ');
+    }
+
+    private static Map<String, String> buildCities() {
+        Map<String, String> cities = new LinkedHashMap<>();
+        for (String city : List.of("București", "Cluj-Napoca", "Timișoara", "Iași", "Constanța", "Craiova", "Brașov",
+                "Galați", "Ploiești", "Oradea", "Brăila", "Arad", "Pitești", "Sibiu", "Bacău", "Târgu Mureș", "Baia Mare",
+                "Buzău", "Botoșani", "Satu Mare", "Râmnicu Vâlcea", "Suceava", "Piatra Neamț", "Drobeta-Turnu Severin",
+                "Târgu Jiu", "Târgoviște", "Focșani", "Bistrița", "Reșița", "Tulcea", "Slatina", "Călărași", "Alba Iulia",
+                "Giurgiu", "Deva", "Hunedoara", "Zalău", "Sfântu Gheorghe", "Bârlad", "Vaslui", "Roman", "Turda",
+                "Mediaș", "Slobozia", "Alexandria", "Voluntari", "Lugoj", "Medgidia", "Onești", "Miercurea Ciuc",
+                "Sighetu Marmației", "Petroșani", "Mangalia", "Tecuci", "Odorheiu Secuiesc", "Râmnicu Sărat", "Pașcani",
+                "Dej", "Reghin", "Năvodari", "Câmpina", "Mioveni", "Câmpulung", "Caracal", "Sighișoara", "Făgăraș",
+                "Floresti", "Otopeni", "Popești-Leordeni", "Chiajna", "Bragadiru", "Pantelimon", "Selimbar", "Dumbrăvița",
+                "Giroc", "Gilău", "Baciu", "Apahida")) {
+            cities.put(normalize(city), city);
+        }
+        cities.put("cluj", "Cluj-Napoca");
+        cities.put("bucuresti", "București");
+        cities.put("bucharest", "București");
+        cities.put("municipiul bucuresti", "București");
+        return cities;
+    }
+}
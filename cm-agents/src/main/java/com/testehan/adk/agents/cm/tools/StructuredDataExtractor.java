@@ -0,0 +1,279 @@
+package com.testehan.adk.agents.cm.tools;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Reads the listing fields the sites already embed as data in the page, instead of leaving them for the LLM to find in
+ * the visible text. The sources are tried from most to least reliable: OLX's prerendered state blob, JSON-LD and
+ * schema.org microdata. The result uses the field names of the listing schema; fields that were not found are left
+ * out, so the formatter only has to fill in those and rewrite the free text.
+ */
+public class StructuredDataExtractor {
+
+    /**
+     * Not a listing field: the site's own key/value details, passed to the formatter as extra context.
+     */
+    public static final String ATTRIBUTES = "attributes";
+
+    /**
+     * The fields the page data, or the {@link RuleBasedFieldExtractor} rules, are trusted for over the formatter's
+     * reading of the text. The formatter isn't asked for them when they are known.
+     */
+    public static final List<String> TRUSTED_FIELDS = List.of("city", "price", "surface", "noOfRooms", "floor", "ownerName", "imageUrls");
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(StructuredDataExtractor.class);
+
+    private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
+
+    // window.__PRERENDERED_STATE__= "<json, escaped as a JavaScript string>";
+    private static final Pattern OLX_PRERENDERED_STATE = Pattern.compile("__PRERENDERED_STATE__\\s*=\\s*(\"(?:[^\"\\\\]|\\\\.)*\")");
+    private static final Pattern FIRST_NUMBER = Pattern.compile("(\\d+(?:[.,]\\d+)?)");
+
+    // The JSON-LD types a listing is described with; nodes of any other type (WebSite, Organization, BreadcrumbList...)
+    // are ignored
+    private static final Set<String> LISTING_TYPES = Set.of("Product", "Offer", "AggregateOffer", "RealEstateListing",
+            "Residence", "Accommodation", "Apartment", "House", "SingleFamilyResidence", "Room", "Suite");
+
+    /**
+     * @return The fields found in the page's embedded data, keyed by listing schema field name, plus
+     * {@link #ATTRIBUTES} when the site lists extra details.
+     */
+    public Map<String, Object> extract(Document page) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        Set<String> imageUrls = new LinkedHashSet<>();
+        List<String> attributes = new ArrayList<>();
+
+        readOlxPrerenderedState(page, fields, imageUrls, attributes);
+        readJsonLd(page, fields, imageUrls);
+        readMicrodata(page, fields, imageUrls, attributes);
+
+        if (!imageUrls.isEmpty()) {
+            fields.put("imageUrls", new ArrayList<>(imageUrls));
+        }
+        if (!attributes.isEmpty()) {
+            fields.put(ATTRIBUTES, attributes);
+        }
+        return fields;
+    }
+
+    private void readOlxPrerenderedState(Document page, Map<String, Object> fields, Set<String> imageUrls, List<String> attributes) {
+        for (Element script : page.select("script")) {
+            Matcher matcher = OLX_PRERENDERED_STATE.matcher(script.data());
+            if (!matcher.find()) {
+                continue;
+            }
+            try {
+                // The state is a JSON document wrapped in a JSON string
+                String stateJson = OBJECT_MAPPER.readValue(matcher.group(1), String.class);
+                JsonNode ad = OBJECT_MAPPER.readTree(stateJson).path("ad").path("ad");
+                if (ad.isMissingNode()) {
+                    return;
+                }
+
+                putText(fields, "name", ad.path("title"));
+                putText(fields, "shortDescription", ad.path("description"));
+                JsonNode regularPrice = ad.path("price").path("regularPrice");
+                if (isEuro(regularPrice.path("currencyCode").asText())) {
+                    putNumber(fields, "price", regularPrice.path("value"));
+                }
+                putText(fields, "city", ad.path("location").path("cityName"));
+                putText(fields, "ownerName", ad.path("user").path("name"));
+
+                for (JsonNode param : ad.path("params")) {
+                    String value = param.path("normalizedValue").asText(param.path("value").asText());
+                    attributes.add(param.path("name").asText() + ": " + param.path("value").asText());
+                    switch (param.path("key").asText()) {
+                        case "m" -> putNumber(fields, "surface", value);
+                        case "rooms" -> putRooms(fields, param.path("value").asText());
+                        case "floor" -> putFloor(fields, param.path("value").asText());
+                        default -> { }
+                    }
+                }
+                for (JsonNode photo : ad.path("photos")) {
+                    String photoUrl = photo.isTextual() ? photo.asText() : photo.path("link").asText();
+                    if (photoUrl.startsWith("http")) {
+                        // OLX photo links carry a size placeholder
+                        imageUrls.add(photoUrl.replace("{width}", "1280").replace("{height}", "960"));
+                    }
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Could not read the OLX prerendered state. {}", e.getMessage());
+            }
+            return;
+        }
+    }
+
+    private void readJsonLd(Document page, Map<String, Object> fields, Set<String> imageUrls) {
+        for (Element script : page.select("script[type=application/ld+json]")) {
+            try {
+                List<JsonNode> nodes = new ArrayList<>();
+                collectNodes(OBJECT_MAPPER.readTree(script.data()), nodes);
+
+                for (JsonNode node : nodes) {
+                    // The same page also describes the site, the publisher and the breadcrumbs, whose name, description
+                    // and logo must not be taken for the listing's
+                    if (!isListingNode(node)) {
+                        continue;
+                    }
+                    putText(fields, "name", node.path("name"));
+                    putText(fields, "shortDescription", node.path("description"));
+                    JsonNode offers = hasType(node, "Offer") ? node
+                            : node.path("offers").isArray() ? node.path("offers").path(0) : node.path("offers");
+                    if (isEuro(offers.path("priceCurrency").asText())) {
+                        putNumber(fields, "price", offers.path("price"));
+                    }
+                    putText(fields, "city", node.path("address").path("addressLocality"));
+                    putNumber(fields, "surface", node.path("floorSize").path("value"));
+                    putNumber(fields, "noOfRooms", node.path("numberOfRooms"));
+                    addImages(imageUrls, node.path("image"));
+                }
+            } catch (Exception e) {
+                LOGGER.debug("Skipping unreadable JSON-LD block. {}", e.getMessage());
+            }
+        }
+    }
+
+    private static void collectNodes(JsonNode node, List<JsonNode> nodes) {
+        if (node.isArray()) {
+            node.forEach(item -> collectNodes(item, nodes));
+        } else if (node.isObject()) {
+            nodes.add(node);
+            collectNodes(node.path("@graph"), nodes);
+        }
+    }
+
+    private static boolean isListingNode(JsonNode node) {
+        return LISTING_TYPES.stream().anyMatch(type -> hasType(node, type));
+    }
+
+    /**
+     * @return true if one of the node's types is the given one, written short ("Product") or as a URL
+     * ("https://schema.org/Product").
+     */
+    private static boolean hasType(JsonNode node, String type) {
+        JsonNode types = node.path("@type");
+        List<JsonNode> values = new ArrayList<>();
+        if (types.isArray()) {
+            types.forEach(values::add);
+        } else {
+            values.add(types);
+        }
+        return values.stream()
+                .map(JsonNode::asText)
+                .map(value -> value.substring(Math.max(value.lastIndexOf('/'), value.lastIndexOf(':')) + 1))
+                .anyMatch(type::equals);
+    }
+
+    private void readMicrodata(Document page, Map<String, Object> fields, Set<String> imageUrls, List<String> attributes) {
+        putText(fields, "name", page.selectFirst("h1[itemprop=name]"));
+        putText(fields, "shortDescription", page.selectFirst("[itemprop=description]"));
+
+        Element price = page.selectFirst("[itemprop=price]");
+        Element currency = page.selectFirst("[itemprop=priceCurrency]");
+        if (price != null && currency != null && isEuro(currency.hasAttr("content") ? currency.attr("content") : currency.text())) {
+            putNumber(fields, "price", price.hasAttr("content") ? price.attr("content") : price.text());
+        }
+        // The place breadcrumb is country, city, area; the city is the second link
+        List<Element> placeLinks = page.select("[itemtype$=schema.org/Place] a[itemprop=url]");
+        if (placeLinks.size() > 1) {
+            putText(fields, "city", placeLinks.get(1));
+        }
+        // publi24 lists the details that have no schema field (partitioning, year, heating...) as attributes
+        Element attributesBlock = page.selectFirst(".article-attributes");
+        if (attributesBlock != null && !attributesBlock.text().isBlank()) {
+            attributes.add(attributesBlock.text());
+        }
+        for (Element image : page.select("[itemprop=image]")) {
+            String src = image.hasAttr("content") ? image.absUrl("content") : image.absUrl("src");
+            if (src.startsWith("http")) {
+                imageUrls.add(src);
+            }
+        }
+    }
+
+    private static void addImages(Set<String> imageUrls, JsonNode image) {
+        if (image.isTextual()) {
+            imageUrls.add(image.asText());
+        } else if (image.isArray()) {
+            image.forEach(item -> addImages(imageUrls, item));
+        } else if (image.has("url")) {
+            addImages(imageUrls, image.path("url"));
+        }
+    }
+
+    // The first source that has a field wins, later ones only fill the gaps.
+    private static void putText(Map<String, Object> fields, String field, JsonNode value) {
+        if (!fields.containsKey(field) && value.isValueNode() && !value.asText().isBlank()) {
+            fields.put(field, value.asText().trim());
+        }
+    }
+
+    private static void putText(Map<String, Object> fields, String field, Element element) {
+        if (!fields.containsKey(field) && element != null && !element.text().isBlank()) {
+            fields.put(field, element.text().trim());
+        }
+    }
+
+    /**
+     * The backend takes prices in euro. A price in another currency (or without one) is left to the formatter, which
+     * reads the currency from the text.
+     */
+    private static boolean isEuro(String currency) {
+        return currency != null && (currency.trim().equalsIgnoreCase("EUR") || currency.trim().equals("€"));
+    }
+
+    private static void putNumber(Map<String, Object> fields, String field, JsonNode value) {
+        if (value.isNumber()) {
+            if (!fields.containsKey(field)) {
+                fields.put(field, (int) Math.round(value.asDouble()));
+            }
+        } else if (value.isTextual()) {
+            putNumber(fields, field, value.asText());
+        }
+    }
+
+    private static void putNumber(Map<String, Object> fields, String field, String text) {
+        if (fields.containsKey(field) || text == null) {
+            return;
+        }
+        // Thousands separators, as in "1.200 €", would otherwise end the number early
+        Matcher matcher = FIRST_NUMBER.matcher(text.replaceAll("(?<=\\d)[.\\s](?=\\d{3}\\b)", ""));
+        if (matcher.find()) {
+            fields.put(field, (int) Math.round(Double.parseDouble(matcher.group(1).replace(',', '.'))));
+        }
+    }
+
+    private static void putRooms(Map<String, Object> fields, String text) {
+        // "Garsoniera" is a single-room flat
+        if (text.toLowerCase().contains("garsonier")) {
+            fields.putIfAbsent("noOfRooms", 1);
+        } else {
+            putNumber(fields, "noOfRooms", text);
+        }
+    }
+
+    private static void putFloor(Map<String, Object> fields, String text) {
+        String floor = text.toLowerCase();
+        if (floor.contains("parter")) {
+            fields.putIfAbsent("floor", 0);
+        } else if (floor.contains("demisol") || floor.contains("subsol")) {
+            fields.putIfAbsent("floor", -1);
+        } else {
+            putNumber(fields, "floor", text);
+        }
+    }
+}
@@ -8,21 +8,36 @@ import com.networknt.schema.JsonSchema;
 import com.networknt.schema.JsonSchemaFactory;
 import com.networknt.schema.SpecVersion;
 import com.networknt.schema.ValidationMessage;
+import com.testehan.adk.agents.cm.metrics.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.stream.Collectors;
 
-import static com.testehan.adk.agents.cm.config.ConfigLoader.getAuthenticationHeaderValue;
+import static com.testehan.adk.agents.cm.Schemas.PROPERTY_JSON_SCHEMA_STRING;
+import static com.testehan.adk.agents.cm.Schemas.jsonSchemaStringWithout;
+import static com.testehan.adk.agents.cm.config.ConfigLoader.getLocalFormatterTimeout;
+import static com.testehan.adk.agents.cm.config.ConfigLoader.getFormatterTimeout;
+import static com.testehan.adk.agents.cm.config.ConfigLoader.getFormatterWorkerCommand;
+import static com.testehan.adk.agents.cm.config.ConfigLoader.getFormatterWorkerCount;
 import static com.testehan.adk.agents.cm.config.Constants.*;
 
 public class Tools {
@@ -31,115 +46,77 @@ public class Tools {
 
     private static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
 
-    // Helper method to build a standard-compliant JSON schema map.
-    private static Map<String, Object> buildStandardJsonSchema() {
-        return Map.of(
-                "type", "object",
-                "properties", Map.of(
-                        "name", Map.of("type", "string", "description", "Name of the listing."),
-                        "city", Map.of("type", "string", "description", "City where the apartment is located."),
-                        "area", Map.of("type", "string", "description", "This must contain the address if available. If address is not mentioned use area where the apartment is located."),
-                        "shortDescription", Map.of("type", "string", "description", "The apartment description."),
-                        "price", Map.of("type", "integer", "description", "Price of the apartment. I only want the number, not the currency."),
-                        "surface", Map.of("type", "integer", "description", "Surface area of the apartment in square meters."),
-                        "noOfRooms", Map.of("type", "integer", "description", "Number of rooms in the apartment."),
-                        "floor", Map.of("type", "integer", "description", "Floor of the apartment."),
-                        "ownerName", Map.of("type", "string", "description", "Name of the owner."),
-                        "imageUrls", Map.of(
-                                "type", "array",
-                                "description", "A list of all found image URLs from the page.",
-                                "items", Map.of("type", "string")
-                        )
-                ),
-                "required", List.of(
-                        "name", "city", "area", "shortDescription", "price", "surface", "noOfRooms", "floor", "ownerName"
-                )
-        );
-    }
+    private static final HumanizedBrowsing HUMANIZED_BROWSING = new HumanizedBrowsing();
 
-    /**
-     * Calls a given API endpoint to fetch a JSON array of strings representing URLs or phones.
-     * @param apiEndpoint The full URL of the API to call.
-     * @return A map containing the status and a list of strings found.
-     */
-    @Annotations.Schema(
-            name = TOOL_GET_STRINGS,
-            description = "Navigates to an API to get the list of strings that must be processed."
-    )
-    public static Map<String, Object> getStringsFromApi(@Annotations.Schema(name = "apiEndpoint", description = "The endpoint for which the retrieval must be done") String apiEndpoint) {
-        LOGGER.info("Tool called: Fetching data from API endpoint: {}", apiEndpoint);
-
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(apiEndpoint))
-                .header("Accept", "application/json") // Good practice to specify expected content type
-                .header("Authorization", getAuthenticationHeaderValue())
-                .build();
-        try {
-            // Send the request and get the response
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+    private static final CasaMiaApiClient API_CLIENT = CasaMiaApiClient.shared();
 
-            if (response.statusCode() == 401) { // Unauthorized
-                return Map.of("status", "error", "message", "API call failed. The provided credentials were an incorrect (Unauthorized).");
-            }
-            if (response.statusCode() != 200) {
-                return Map.of("status", "error", "message", "API call failed with status code: " + response.statusCode());
-            }
 
-            String responseBody = response.body();
-            // Parse the JSON array of strings into a Java List<String>
-            List<String> strings = OBJECT_MAPPER.readValue(responseBody, new TypeReference<>() {});
+    // Only created when a resident worker command is configured, otherwise every listing starts its own Gemini CLI
+    private static final FormatterWorkerPool FORMATTER_WORKER_POOL = getFormatterWorkerCommand().isEmpty()
+            ? null
+            : new FormatterWorkerPool(getFormatterWorkerCommand(), getFormatterWorkerCount());
+    private static final ExecutorService FORMATTER_OUTPUT_READERS = Executors.newVirtualThreadPerTaskExecutor();
+    private static final FormatterLatency POOLED_FORMATTER_LATENCY = new FormatterLatency();
+    private static final FormatterLatency SPAWNED_FORMATTER_LATENCY = new FormatterLatency();
 
-            LOGGER.info("Successfully fetched {} strings from the API {}.", strings.size(), apiEndpoint);
-            return Map.of("status", "success", OUTPUT_SCOUT_AGENT, strings);
+    // The formatting rules shared by the single listing and the batch prompts
+    private static final String PROMPT_FORMATTING_RULES = """
+            Textul furnizat ca input este în limba română. Textul furnizat la final trebuie să fie tot în limba română.
 
-        } catch (Exception e) {
-            LOGGER.error("An error occurred while calling the API", e);
-            return Map.of("status", "error", "message", "An unexpected error occurred: " + e.getMessage());
-        }
-    }
+            Foarte important:
+            - Câmpul „city” trebuie să conțină un nume real de oraș din România. Dacă valoarea este „Cluj”, folosește „Cluj-Napoca”.
+            - Nu inventa adrese. Dacă nu este menționată o stradă, lasă doar cartierul sau zona (ex: „Nufărul”).
+            - Nu adăuga sau inventa detalii care nu sunt prezente în text.
 
-    /**
-     * Calls a given API endpoint to fetch a JSON array of Map<String, String> representing phoneNumber key to url value.
-     * @param apiEndpoint The full URL of the API to call.
-     * @return A map containing the status and a list of Map<String, String> found.
-     */
-    @Annotations.Schema(
-            name = TOOL_GET_MAPS,
-            description = "Navigates to an API to get the list of Map<String, String> that must be processed."
-    )
-    public static Map<String, Object> getMapsFromApi(@Annotations.Schema(name = "apiEndpoint", description = "The endpoint for which the retrieval must be done") String apiEndpoint) {
-        LOGGER.info("Tool called: Fetching data from API endpoint: {}", apiEndpoint);
-
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(apiEndpoint))
-                .header("Accept", "application/json") // Good practice to specify expected content type
-                .header("Authorization", getAuthenticationHeaderValue())
-                .build();
-        try {
-            // Send the request and get the response
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            La formatarea câmpului „name”:
+            - Rescrie numele astfel încât să sune profesionist, concis și atractiv.
+            - NU include cuvinte precum „Proprietar”, „PF”, „închiriez” sau „de închiriat”.
+            - Evidențiază numărul de camere, suprafața și zona, dacă sunt disponibile.
+            - Păstrează-l sub 70 de caractere.
+            - NU adăuga sau inventa detalii care nu sunt prezente în textul de intrare.
 
-            if (response.statusCode() == 401) { // Unauthorized
-                return Map.of("status", "error", "message", "API call failed. The provided credentials were an incorrect (Unauthorized).");
-            }
-            if (response.statusCode() != 200) {
-                return Map.of("status", "error", "message", "API call failed with status code: " + response.statusCode());
-            }
+            La formatarea câmpului „shortDescription”:
+            - Include TOATE informațiile utile din textul original, fără a omite detalii.
+            - Păstrează detalii despre compartimentare, dotări, suprafață, balcon, an construcție, etaj, mobilier, echipamente, reguli (fumat, animale) și condiții de închiriere.
+            - Poți reformula pentru claritate și coerență, dar NU rezuma și NU scurta textul.
+            - Menține un ton natural, fluent și complet. Este preferabil ca textul să fie lung, dar informativ.
+            - Nu adăuga referințe la platforme imobiliare (ex: OLX, Publi24).
 
-            String responseBody = response.body();
-            // Parse the JSON array of strings into a Java List<String>
-            List<Map<String,String>> pairs = OBJECT_MAPPER.readValue(responseBody, new TypeReference<>() {});
+            La formatarea câmpului „area”:
+            - Extrage cea mai precisă informație de localizare disponibilă.
+            - Poate fi numele unei străzi, cartier, piață sau punct de reper cunoscut.
+            - Urmează ordinea: adresă exactă > cartier > punct de reper.
+            - Dacă nu este menționat nimic, lasă câmpul gol.
+            - NU inventa locații inexistente.
+
+            Iată DEFINIȚIA SCHEMEI PE CARE ȘIRUL TĂU JSON FINAL TREBUIE SĂ O RESPECTE:
+            {format}
 
-            LOGGER.info("Successfully fetched {} strings from the API {}", pairs.size(), apiEndpoint);
-            return Map.of("status", "success", OUTPUT_SCOUT_AGENT, pairs);
+            ATENȚIE: Descrierea trebuie să fie completă. Nu omite niciun detaliu prezent în textul original, chiar dacă pare minor.
 
-        } catch (Exception e) {
-            LOGGER.error("An error occurred while calling the API", e);
-            return Map.of("status", "error", "message", "An unexpected error occurred: " + e.getMessage());
-        }
-    }
+            """;
+
+    private static final String PROMPT_FORMAT_LISTING = """
+            Ești un expert în formatarea JSON. Vei primi un text brut: {rawText}
+            Nu încerca să extragi date de pe internet sau să navighezi. Nu genera date. Singura ta sarcină este să convertești textul furnizat într-un obiect JSON valid care respectă schema furnizată.
+            """ + PROMPT_FORMATTING_RULES + """
+            Răspunsul tău final TREBUIE să fie NUMAI șirul JSON brut. Nu-l încadra în markdown și nu adăuga niciun alt text.
+            """;
+
+    private static final String PROMPT_FORMAT_LISTINGS_BATCH = """
+            Ești un expert în formatarea JSON. Vei primi {count} anunțuri, fiecare ca text brut între linia „<<<ANUNȚ n>>>” și linia „<<<SFÂRȘIT ANUNȚ n>>>”.
+            Nu încerca să extragi date de pe internet sau să navighezi. Nu genera date. Singura ta sarcină este să convertești fiecare anunț, separat, într-un obiect JSON valid care respectă schema furnizată. Nu amesteca informații între anunțuri.
+            """ + PROMPT_FORMATTING_RULES + """
+            Răspunsul tău final TREBUIE să fie NUMAI un array JSON brut cu exact {count} obiecte, câte unul pentru fiecare anunț, în ordinea anunțurilor. Nu-l încadra în markdown și nu adăuga niciun alt text.
+
+            Anunțurile:
+            {listings}
+            """;
+
+    // Compiled once; a JsonSchema is thread-safe once its validators are initialized
+    private static final JsonSchema PROPERTY_VALIDATOR = compileValidator(PROPERTY_JSON_SCHEMA_STRING);
+    // The schemas of formatter answers that leave the known fields out, by the fields left out
+    private static final Map<Set<String>, JsonSchema> PARTIAL_VALIDATORS = new ConcurrentHashMap<>();
 
     @Annotations.Schema(
             name = TOOL_EXTRACT,
@@ -149,8 +126,7 @@ public class Tools {
             @Annotations.Schema(name = "url", description = "The url for which the retrieval must be done")
             String url) {
 
-        HumanizedBrowsing humanizedBrowsing = new HumanizedBrowsing();
-        return humanizedBrowsing.browseUrl(url);
+        return HUMANIZED_BROWSING.browseUrl(url);
     }
 
 
@@ -164,16 +140,18 @@ public class Tools {
         // this is the local spring app that connects to ollama
         String endpointUrl = "http://localhost:8077/api/v1/ollama/format";
 
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(endpointUrl))
+        // Plain HTTP on localhost, so skip the HTTP/2 upgrade attempt
+        HttpRequest request = API_CLIENT.request(endpointUrl)
+                .version(HttpClient.Version.HTTP_1_1)
                 .header("Content-Type", "text/plain")
-                .timeout(Duration.ofMinutes(5))
+                .timeout(getLocalFormatterTimeout())
                 .POST(HttpRequest.BodyPublishers.ofString(scrapedText))
                 .build();
 
+        long startNanos = System.nanoTime();
         try {
-            HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+            HttpResponse<String> response = API_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+            Metrics.recordLlmCall("ollama", System.nanoTime() - startNanos, response.statusCode() == 200);
 
             if (response.statusCode() == 200) {
                 // ADK tools should return a Map.
@@ -184,7 +162,13 @@ public class Tools {
                 LOGGER.error("EXECUTING TOOL_FORMAT_LISTING_LOCAL: {}",errorMessage);
                 return Map.of("error", errorMessage);
             }
-        } catch (IOException | InterruptedException e) {
+        } catch (IOException e) {
+            Metrics.recordLlmCall("ollama", System.nanoTime() - startNanos, false);
+            String errorMessage = "Error calling local formatting endpoint: " + e.getMessage();
+            LOGGER.error("EXECUTING TOOL_FORMAT_LISTING_LOCAL: {}",errorMessage);
+            return Map.of("error", errorMessage);
+        } catch (InterruptedException e) {
+            // The caller gave up on this answer, e.g. a hedged request that lost the race
             Thread.currentThread().interrupt();
             String errorMessage = "Error calling local formatting endpoint: " + e.getMessage();
             LOGGER.error("EXECUTING TOOL_FORMAT_LISTING_LOCAL: {}",errorMessage);
@@ -207,106 +191,188 @@ public class Tools {
     )
     public static Map<String, Object> formatListingLocalGemini(@Annotations.Schema(name = "scrapedText", description = "The scrapedText that must be sent to the local endpoint for formatting")
                                         String scrapedText) {
-        try {
-            Map<String, Object> standardSchemaMap = buildStandardJsonSchema();
-            String standardSchemaJson = OBJECT_MAPPER.writeValueAsString(standardSchemaMap);
-
-            String PROMPT_FORMAT_LISTING = """
-            Ești un expert în formatarea JSON. Vei primi un text brut: {rawText}
-            Nu încerca să extragi date de pe internet sau să navighezi. Nu genera date. Singura ta sarcină este să convertești textul furnizat într-un obiect JSON valid care respectă schema furnizată.
-            Textul furnizat ca input este în limba română. Textul furnizat la final trebuie să fie tot în limba română.
-            
-            Foarte important:
-            - Câmpul „city” trebuie să conțină un nume real de oraș din România. Dacă valoarea este „Cluj”, folosește „Cluj-Napoca”.
-            - Nu inventa adrese. Dacă nu este menționată o stradă, lasă doar cartierul sau zona (ex: „Nufărul”).
-            - Nu adăuga sau inventa detalii care nu sunt prezente în text.
-            
-            La formatarea câmpului „name”:
-            - Rescrie numele astfel încât să sune profesionist, concis și atractiv.
-            - NU include cuvinte precum „Proprietar”, „PF”, „închiriez” sau „de închiriat”.
-            - Evidențiază numărul de camere, suprafața și zona, dacă sunt disponibile.
-            - Păstrează-l sub 70 de caractere.
-            - NU adăuga sau inventa detalii care nu sunt prezente în textul de intrare.
-            
-            La formatarea câmpului „shortDescription”:
-            - Include TOATE informațiile utile din textul original, fără a omite detalii.
-            - Păstrează detalii despre compartimentare, dotări, suprafață, balcon, an construcție, etaj, mobilier, echipamente, reguli (fumat, animale) și condiții de închiriere.
-            - Poți reformula pentru claritate și coerență, dar NU rezuma și NU scurta textul.
-            - Menține un ton natural, fluent și complet. Este preferabil ca textul să fie lung, dar informativ.
-            - Nu adăuga referințe la platforme imobiliare (ex: OLX, Publi24).
-            
-            La formatarea câmpului „area”:
-            - Extrage cea mai precisă informație de localizare disponibilă.
-            - Poate fi numele unei străzi, cartier, piață sau punct de reper cunoscut.
-            - Urmează ordinea: adresă exactă > cartier > punct de reper.
-            - Dacă nu este menționat nimic, lasă câmpul gol.
-            - NU inventa locații inexistente.
-            
-            Iată DEFINIȚIA SCHEMEI PE CARE ȘIRUL TĂU JSON FINAL TREBUIE SĂ O RESPECTE:
-            {format}
-            
-            ATENȚIE: Descrierea trebuie să fie completă. Nu omite niciun detaliu prezent în textul original, chiar dacă pare minor.
-            
-            Răspunsul tău final TREBUIE să fie NUMAI șirul JSON brut. Nu-l încadra în markdown și nu adăuga niciun alt text.
-            """;
+        return formatMissingFieldsLocalGemini(scrapedText, List.of());
+    }
 
+    /**
+     * Like {@link #formatListingLocalGemini(String)}, but the formatter is only asked for the fields that aren't known
+     * yet; the result holds just those, the caller adds the known ones. Fewer fields mean a shorter answer.
+     *
+     * @param knownFields The listing fields the caller already has.
+     */
+    public static Map<String, Object> formatMissingFieldsLocalGemini(String scrapedText, Collection<String> knownFields) {
+        try {
             String prompt = PROMPT_FORMAT_LISTING.replace("{rawText}", scrapedText)
-                    .replace("{format}", standardSchemaJson);
+                    .replace("{format}", jsonSchemaStringWithout(knownFields));
+
+            String output = runFormatter(prompt);
+            String formattedListing = output.replaceFirst("(?s)```json\\s*", "").replaceFirst("(?s)```\\s*$", "");
+            return OBJECT_MAPPER.readValue(formattedListing, new TypeReference<Map<String, Object>>() {});
 
-            // 1. Create the ProcessBuilder
-            // This command assumes 'gemini' is in your system's PATH.
-            // If not, you'd need to provide the full path to the executable.
-            ProcessBuilder processBuilder = new ProcessBuilder("gemini");
+        } catch (IOException | InterruptedException | TimeoutException e) {
+            String errorMessage = "Error calling local formatting endpoint: " + e.getMessage();
+            LOGGER.error("EXECUTING TOOL_FORMAT_LISTING_LOCAL: {}",errorMessage);
+            return Map.of("error", errorMessage);
 
-            // Optional: Merge the error stream with the standard output stream.
-            // This is convenient for capturing both normal output and errors in one place.
-            processBuilder.redirectErrorStream(true);
+        }
+    }
 
-            StringBuilder output = new StringBuilder();
+    /**
+     * Formats several listings with a single formatter call, so the instructions and the schema are sent once for all
+     * of them. The answer is expected to be a JSON array with one listing per input, in order; every item is checked
+     * against the listing schema. Items that are missing or invalid, or all of them if the answer can't be split, are
+     * formatted again one by one with {@link #formatListingLocalGemini(String)}.
+     *
+     * @param scrapedTexts The scraped texts of the listings.
+     * @return One result per input, in the same order, shaped like the result of {@link #formatListingLocalGemini(String)}.
+     */
+    public static List<Map<String, Object>> formatListingsLocalGemini(List<String> scrapedTexts) {
+        if (scrapedTexts.size() == 1) {
+            return List.of(formatListingLocalGemini(scrapedTexts.getFirst()));
+        }
 
-            // 2. Start the Process
-            Process process = null;
+        StringBuilder listings = new StringBuilder();
+        for (int i = 0; i < scrapedTexts.size(); i++) {
+            listings.append("<<<ANUNȚ ").append(i + 1).append(">>>\n")
+                    .append(scrapedTexts.get(i))
+                    .append("\n<<<SFÂRȘIT ANUNȚ ").append(i + 1).append(">>>\n\n");
+        }
+        String prompt = PROMPT_FORMAT_LISTINGS_BATCH.replace("{format}", PROPERTY_JSON_SCHEMA_STRING)
+                .replace("{count}", String.valueOf(scrapedTexts.size()))
+                .replace("{listings}", listings);
 
-            process = processBuilder.start();
+        JsonNode items = null;
+        try {
+            String output = runFormatter(prompt);
+            items = OBJECT_MAPPER.readTree(output.replaceFirst("(?s)```json\\s*", "").replaceFirst("(?s)```\\s*$", ""));
+        } catch (IOException | InterruptedException | TimeoutException e) {
+            LOGGER.error("Batch formatter call for {} listings failed, formatting them one by one. {}", scrapedTexts.size(), e.getMessage());
+        }
+        if (items != null && (!items.isArray() || items.size() != scrapedTexts.size())) {
+            LOGGER.warn("Batch formatter answered with {} instead of an array of {} listings, formatting them one by one.",
+                    items.isArray() ? items.size() + " items" : items.getNodeType(), scrapedTexts.size());
+            items = null;
+        }
 
+        List<Map<String, Object>> results = new ArrayList<>();
+        int reformatted = 0;
+        for (int i = 0; i < scrapedTexts.size(); i++) {
+            JsonNode item = items == null ? null : items.get(i);
+            if (item != null && item.isObject() && !item.has("error") && Boolean.TRUE.equals(validate(item.toString()).get("isValid"))) {
+                results.add(OBJECT_MAPPER.convertValue(item, new TypeReference<Map<String, Object>>() {}));
+            } else {
+                results.add(formatListingLocalGemini(scrapedTexts.get(i)));
+                reformatted++;
+            }
+        }
+        LOGGER.info("Batch formatter call for {} listings done, {} of them had to be formatted again on their own.", scrapedTexts.size(), reformatted);
+        return results;
+    }
 
-            // 3. Send the Prompt (write to the process's standard input)
-            // We use a try-with-resources block to ensure the writer is closed automatically.
-            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()))) {
-                writer.write(prompt);
-                // IMPORTANT: You must close the writer. This sends the EOF (End-of-File) signal
-                // to the gemini process, letting it know that the input is complete.
-                // Without this, the gemini process will wait for more input forever.
+    // Sends the prompt to a resident formatter worker when one is configured, otherwise (or if the worker fails)
+    // starts the Gemini CLI for this one prompt. Both ways are timed so the logs show what the pool saves.
+    private static String runFormatter(String prompt) throws IOException, InterruptedException, TimeoutException {
+        Duration timeout = getFormatterTimeout();
+        long startNanos = System.nanoTime();
+        if (FORMATTER_WORKER_POOL != null) {
+            try {
+                String output = FORMATTER_WORKER_POOL.execute(prompt, timeout);
+                POOLED_FORMATTER_LATENCY.record(System.nanoTime() - startNanos);
+                Metrics.recordLlmCall("gemini_worker", System.nanoTime() - startNanos, true);
+                logFormatterLatency();
+                return output;
+            } catch (IOException | TimeoutException e) {
+                LOGGER.warn("Formatter worker pool failed, falling back to starting the Gemini CLI. {}", e.getMessage());
+                Metrics.recordLlmCall("gemini_worker", System.nanoTime() - startNanos, false);
+                startNanos = System.nanoTime();
             }
+        }
 
-            // 4. Read the Response (read from the process's standard output)
-            // Use try-with-resources for the reader as well.
+        String output;
+        try {
+            output = runGeminiProcess(prompt, timeout);
+        } catch (IOException | TimeoutException e) {
+            // An interrupted call was given up by the caller, it doesn't count as a failed one
+            Metrics.recordLlmCall("gemini_cli", System.nanoTime() - startNanos, false);
+            throw e;
+        }
+        SPAWNED_FORMATTER_LATENCY.record(System.nanoTime() - startNanos);
+        Metrics.recordLlmCall("gemini_cli", System.nanoTime() - startNanos, true);
+        logFormatterLatency();
+        return output;
+    }
+
+    private static String runGeminiProcess(String prompt, Duration timeout) throws IOException, InterruptedException, TimeoutException {
+        // This command assumes 'gemini' is in your system's PATH.
+        // If not, you'd need to provide the full path to the executable.
+        ProcessBuilder processBuilder = new ProcessBuilder("gemini");
+
+        // Merge the error stream with the standard output stream, so errors end up in the captured output.
+        processBuilder.redirectErrorStream(true);
+        Process process = processBuilder.start();
+
+        // The output is read on its own thread, so the timeout below also covers a CLI that hangs while talking
+        CompletableFuture<String> output = CompletableFuture.supplyAsync(() -> {
             try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+                StringBuilder builder = new StringBuilder();
                 String line;
                 while ((line = reader.readLine()) != null) {
-                    output.append(line).append(System.lineSeparator());
+                    builder.append(line).append(System.lineSeparator());
                 }
+                return builder.toString();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
             }
+        }, FORMATTER_OUTPUT_READERS);
 
-            String formattedListing = output.toString().replaceFirst("(?s)```json\\s*", "").replaceFirst("(?s)```\\s*$", "");
-            // 5. Wait for the process to complete and check the exit code
-            int exitCode = process.waitFor();
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(process.getOutputStream()))) {
+            writer.write(prompt);
+            // IMPORTANT: closing the writer sends EOF, letting the gemini process know that the input is complete.
+        }
 
-            if (exitCode != 0) {
-                // If the exit code is non-zero, something went wrong.
-                // The captured output may contain the error message.
-                var errorMessage = "Gemini CLI exited with a non-zero code: " + exitCode + "\nOutput:\n" + output;
-                LOGGER.error("EXECUTING TOOL_FORMAT_LISTING_LOCAL_GEMINI: {}",errorMessage);
-                return Map.of("error", errorMessage);
-            } else {
-                return OBJECT_MAPPER.readValue(formattedListing, new TypeReference<Map<String, Object>>() {});
+        try {
+            if (!process.waitFor(timeout.toMillis(), TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly();
+                throw new TimeoutException("Gemini CLI did not answer within " + timeout.toSeconds() + " seconds");
             }
+        } catch (InterruptedException e) {
+            // The caller gave up on this answer, e.g. a hedged request that lost the race
+            process.destroyForcibly();
+            throw e;
+        }
 
-        } catch (IOException | InterruptedException e) {
-            String errorMessage = "Error calling local formatting endpoint: " + e.getMessage();
-            LOGGER.error("EXECUTING TOOL_FORMAT_LISTING_LOCAL: {}",errorMessage);
-            return Map.of("error", errorMessage);
+        String capturedOutput;
+        try {
+            capturedOutput = output.get(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not read the Gemini CLI output", e.getCause());
+        }
 
+        int exitCode = process.exitValue();
+        if (exitCode != 0) {
+            // The captured output may contain the error message.
+            throw new IOException("Gemini CLI exited with a non-zero code: " + exitCode + "\nOutput:\n" + capturedOutput);
+        }
+        return capturedOutput;
+    }
+
+    private static void logFormatterLatency() {
+        LOGGER.info("Formatter latency: worker pool {}, process per listing {}.", POOLED_FORMATTER_LATENCY, SPAWNED_FORMATTER_LATENCY);
+    }
+
+    private static class FormatterLatency {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder totalNanos = new LongAdder();
+
+        void record(long nanos) {
+            calls.increment();
+            totalNanos.add(nanos);
+        }
+
+        @Override
+        public String toString() {
+            long count = calls.sum();
+            return count == 0 ? "no calls" : String.format("avg %d ms over %d calls", totalNanos.sum() / count / 1_000_000, count);
         }
     }
 
@@ -323,26 +389,50 @@ public class Tools {
     public static Map<String, Object> validatePropertyJson(
             @Annotations.Schema(name = "agentJsonString", description = "the json String that must be validated")
             String agentJsonString) {
-        try {
-            LOGGER.info("Tool called: validatePropertyJson {}", agentJsonString);
+        LOGGER.info("Tool called: validatePropertyJson {}", agentJsonString);
+        return validate(agentJsonString);
+    }
 
-            Map<String, Object> standardSchemaMap = buildStandardJsonSchema();
-            String standardSchemaJson = OBJECT_MAPPER.writeValueAsString(standardSchemaMap);
-            LOGGER.info("LOG: Using this standard-compliant schema for validation: {}",  standardSchemaJson);
+    /**
+     * Validates several listings against the compiled schema in one call.
+     *
+     * @param agentJsonStrings the json Strings that must be validated
+     * @return One result map per input, in the same order, shaped like the result of {@link #validatePropertyJson(String)}.
+     */
+    public static List<Map<String, Object>> validatePropertyJsons(List<String> agentJsonStrings) {
+        List<Map<String, Object>> results = agentJsonStrings.stream()
+                .map(Tools::validate)
+                .toList();
+        long valid = results.stream().filter(result -> Boolean.TRUE.equals(result.get("isValid"))).count();
+        LOGGER.info("Tool validatePropertyJsons: {} of {} listings are valid.", valid, results.size());
+        return results;
+    }
 
+    /**
+     * Validates a formatter answer against the schema it was asked to follow, i.e. without the fields that were
+     * already known and left out of the prompt.
+     *
+     * @param knownFields The fields left out of the formatter prompt.
+     * @return A result map shaped like the result of {@link #validatePropertyJson(String)}.
+     */
+    public static Map<String, Object> validateFormatterResult(String formattedJson, Set<String> knownFields) {
+        JsonSchema schema = knownFields.isEmpty()
+                ? PROPERTY_VALIDATOR
+                : PARTIAL_VALIDATORS.computeIfAbsent(Set.copyOf(knownFields), fields -> compileValidator(jsonSchemaStringWithout(fields)));
+        return validate(formattedJson, schema);
+    }
 
-            // Step 2: Set up the validator factory
-            JsonSchemaFactory factory = JsonSchemaFactory.getInstance(SpecVersion.VersionFlag.V202012);
-            JsonSchema schema = factory.getSchema(standardSchemaJson);
+    private static Map<String, Object> validate(String agentJsonString) {
+        return validate(agentJsonString, PROPERTY_VALIDATOR);
+    }
 
-            // Step 3: Parse the agent's output string into a JSON tree
+    private static Map<String, Object> validate(String agentJsonString, JsonSchema validator) {
+        try {
             JsonNode node = OBJECT_MAPPER.readTree(agentJsonString);
-
-            // Step 4: Perform the validation!
-            Set<ValidationMessage> errors = schema.validate(node);
+            Set<ValidationMessage> errors = validator.validate(node);
 
             if (errors.isEmpty()) {
-                LOGGER.info("Tool validatePropertyJson: The JSON is valid!");
+                LOGGER.debug("Tool validatePropertyJson: The JSON is valid!");
                 return Map.of(
                         "isValid", true,
                         "message", "JSON is valid and conforms to the schema."
@@ -361,7 +451,7 @@ public class Tools {
                 );
             }
         } catch (Exception e) {
-            // Catches errors in parsing the schema or the input JSON itself
+            // Catches errors in parsing the input JSON itself
             LOGGER.info("Tool validatePropertyJson: Exception! {}", e.getMessage());
             return Map.of(
                     "isValid", false,
@@ -369,4 +459,11 @@ public class Tools {
             );
         }
     }
+
+    private static JsonSchema compileValidator(String jsonSchemaString) {
+        JsonSchema schema = JsonSchemaFactory.getInstance(SpecVersion.VersionFlag.V202012).getSchema(jsonSchemaString);
+        schema.initializeValidators();
+        LOGGER.debug("Compiled the listing validation schema: {}", jsonSchemaString);
+        return schema;
+    }
 }
@@ -0,0 +1,130 @@
+package com.testehan.adk.agents.cm.tools;
+
+import com.testehan.adk.agents.cm.pipeline.PipelineStage;
+import com.testehan.adk.agents.cm.pipeline.TokenBucket;
+import com.testehan.adk.agents.cm.store.ListingJournal;
+import com.testehan.adk.agents.cm.store.SeenUrlIndex;
+import com.testehan.adk.agents.cm.store.UploadOutbox;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Uploads listings in the background instead of blocking the listing flow.
+ * Every listing goes to the durable {@link UploadOutbox} first, then through an upload stage whose worker count is the
+ * maximum number of uploads in flight. A token bucket paces the requests to what the CasaMia backend can take, and
+ * 429/5xx/network failures are retried with exponential backoff. Listings that still fail stay in the outbox and are
+ * retried at the start of the next run.
+ */
+public class UploadService {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(UploadService.class);
+
+    private final ListingUploader uploader = new ListingUploader();
+    private final UploadOutbox outbox;
+    private final ListingJournal journal;
+    private final SeenUrlIndex seenUrlIndex;
+    private final TokenBucket rateLimiter;
+    private final int maxAttempts;
+    private final Duration initialBackoff;
+    private final PipelineStage<UploadOutbox.Entry, Void> uploadStage;
+
+    private final AtomicInteger uploaded = new AtomicInteger();
+    private final AtomicInteger leftInOutbox = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+
+    public UploadService(UploadOutbox outbox, ListingJournal journal, SeenUrlIndex seenUrlIndex, TokenBucket rateLimiter, int maxInFlight, int queueCapacity, int maxAttempts, Duration initialBackoff) {
+        this.outbox = outbox;
+        this.journal = journal;
+        this.seenUrlIndex = seenUrlIndex;
+        this.rateLimiter = rateLimiter;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoff = initialBackoff;
+        this.uploadStage = new PipelineStage<>("upload", queueCapacity, maxInFlight, this::uploadWithRetries);
+    }
+
+    /**
+     * Starts the upload workers and queues the listings left in the outbox by earlier runs.
+     */
+    public UploadService start() throws InterruptedException {
+        uploadStage.start();
+        List<UploadOutbox.Entry> pending = outbox.pending();
+        if (!pending.isEmpty()) {
+            LOGGER.info("Resuming {} uploads left in the outbox by an earlier run.", pending.size());
+        }
+        for (UploadOutbox.Entry entry : pending) {
+            uploadStage.submit(entry);
+        }
+        return this;
+    }
+
+    /**
+     * Persists the listing and queues it for upload. Only blocks when the upload queue is full.
+     * Once the listing is in the outbox its run is complete as far as the journal is concerned, and its URL is skipped
+     * by the next runs.
+     * @param listingJson A listing that was validated against the listing schema, nothing else may mark its URL.
+     */
+    public void submit(String listingJson, String listingSourceUrl) throws IOException, InterruptedException {
+        UploadOutbox.Entry entry = outbox.add(listingJson, listingSourceUrl);
+        journal.record(listingSourceUrl, ListingJournal.Stage.UPLOADED, Map.of());
+        seenUrlIndex.markProcessed(listingSourceUrl);
+        uploadStage.submit(entry);
+    }
+
+    /**
+     * Waits for the queued uploads to be attempted. Uploads that exhausted their retries stay in the outbox.
+     */
+    public void finishAndAwait() throws InterruptedException {
+        uploadStage.finish();
+        uploadStage.awaitFinished();
+        LOGGER.info("Uploads finished: {} uploaded, {} rejected, {} left in the outbox for the next run.",
+                uploaded.get(), rejected.get(), leftInOutbox.get());
+        LOGGER.info("{}", CasaMiaApiClient.shared().describe());
+    }
+
+    private Void uploadWithRetries(UploadOutbox.Entry entry) throws InterruptedException {
+        for (int attempt = 1; ; attempt++) {
+            rateLimiter.acquire();
+            ListingUploader.UploadResult result;
+            try {
+                result = uploader.upload(entry.listingJson(), entry.listingSourceUrl());
+            } catch (RuntimeException e) {
+                // E.g. a listing that can't be mapped to the request; it would fail the same way in every later run
+                LOGGER.error("Upload of {} failed unexpectedly, treating it as rejected.", entry.listingSourceUrl(), e);
+                result = ListingUploader.UploadResult.PERMANENT_FAILURE;
+            }
+
+            switch (result) {
+                case UPLOADED -> {
+                    outbox.remove(entry);
+                    uploaded.incrementAndGet();
+                    return null;
+                }
+                case PERMANENT_FAILURE -> {
+                    LOGGER.error("Upload of {} was rejected, moving it to the failed uploads.", entry.listingSourceUrl());
+                    outbox.moveToFailed(entry);
+                    rejected.incrementAndGet();
+                    return null;
+                }
+                case RETRYABLE_FAILURE -> {
+                    if (attempt >= maxAttempts) {
+                        LOGGER.warn("Upload of {} failed {} times, leaving it in the outbox for the next run.", entry.listingSourceUrl(), attempt);
+                        leftInOutbox.incrementAndGet();
+                        return null;
+                    }
+                    // Exponential backoff with jitter, so retries from several workers don't hit the backend together
+                    long backoffMillis = initialBackoff.toMillis() * (1L << (attempt - 1));
+                    backoffMillis += ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+                    LOGGER.info("Upload of {} failed, retrying in {} ms (attempt {}/{}).", entry.listingSourceUrl(), backoffMillis, attempt, maxAttempts);
+                    Thread.sleep(backoffMillis);
+                }
+            }
+        }
+    }
+}
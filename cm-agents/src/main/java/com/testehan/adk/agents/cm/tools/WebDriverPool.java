@@ -0,0 +1,251 @@
+package com.testehan.adk.agents.cm.tools;
+
+import org.openqa.selenium.JavascriptExecutor;
+import org.openqa.selenium.WebDriver;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A pool of browser sessions that are reused across pages instead of starting a new Chrome for every listing.
+ * Sessions are borrowed with {@link #borrow()} and must be given back with {@link #release(PooledWebDriver)}.
+ * A session is health checked before it is handed out, and it is recycled after a number of pages or when the
+ * JS heap of the page grows over a threshold. A few idle sessions are kept warm so that a borrow rarely waits for Chrome to start.
+ */
+public final class WebDriverPool {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(WebDriverPool.class);
+
+    private static final String JS_HEAP_SCRIPT =
+            "return window.performance && performance.memory ? performance.memory.usedJSHeapSize : 0;";
+
+    private final Supplier<WebDriver> driverFactory;
+    private final int maxSize;
+    private final int minIdle;
+    private final int maxPagesPerSession;
+    private final long maxJsHeapBytes;
+
+    private final BlockingDeque<PooledWebDriver> idleDrivers = new LinkedBlockingDeque<>();
+    private final Semaphore leases;
+    private final AtomicInteger openSessions = new AtomicInteger();
+    private final AtomicInteger createdSessions = new AtomicInteger();
+    private final AtomicInteger recycledSessions = new AtomicInteger();
+    private volatile boolean shutDown;
+
+    // Browsers are started in the background, one at a time, so a burst of borrows doesn't start a burst of Chromes.
+    private final ExecutorService warmer = Executors.newSingleThreadExecutor(Thread.ofVirtual().name("webdriver-pool-warmer").factory());
+
+    public WebDriverPool(Supplier<WebDriver> driverFactory, int maxSize, int minIdle, int maxPagesPerSession, int maxJsHeapMb) {
+        this.driverFactory = driverFactory;
+        this.maxSize = Math.max(1, maxSize);
+        this.minIdle = Math.max(0, Math.min(minIdle, this.maxSize));
+        this.maxPagesPerSession = Math.max(1, maxPagesPerSession);
+        this.maxJsHeapBytes = maxJsHeapMb * 1024L * 1024L;
+        this.leases = new Semaphore(this.maxSize, true);
+
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "webdriver-pool-shutdown"));
+    }
+
+    /**
+     * Starts the standby browsers in the background, so they are ready by the time the first page is needed.
+     */
+    public void warmUp() {
+        if (shutDown) {
+            return;
+        }
+        try {
+            warmer.submit(this::replenish);
+        } catch (RejectedExecutionException e) {
+            // Shut down in the meantime
+        }
+    }
+
+    /**
+     * Borrows a healthy browser session, waiting if all of them are in use.
+     */
+    public PooledWebDriver borrow() throws InterruptedException {
+        leases.acquire();
+        try {
+            PooledWebDriver pooledDriver = null;
+            while (pooledDriver == null) {
+                pooledDriver = takeHealthyIdle();
+                if (pooledDriver == null && reserveSession()) {
+                    LOGGER.info("No warm browser available, starting a new one.");
+                    pooledDriver = create();
+                } else if (pooledDriver == null) {
+                    // Every free session slot is taken by a standby browser that is still starting, wait for it
+                    pooledDriver = idleDrivers.pollFirst(1, TimeUnit.SECONDS);
+                    if (pooledDriver != null && !isHealthy(pooledDriver)) {
+                        discard(pooledDriver);
+                        pooledDriver = null;
+                    }
+                }
+            }
+            warmUp();
+            return pooledDriver;
+        } catch (RuntimeException | InterruptedException e) {
+            leases.release();
+            throw e;
+        }
+    }
+
+    private PooledWebDriver takeHealthyIdle() {
+        PooledWebDriver pooledDriver;
+        while ((pooledDriver = idleDrivers.pollFirst()) != null) {
+            if (isHealthy(pooledDriver)) {
+                return pooledDriver;
+            }
+            LOGGER.warn("Discarding a browser session that failed its health check.");
+            discard(pooledDriver);
+        }
+        return null;
+    }
+
+    /**
+     * Gives a browser session back to the pool. Sessions that served too many pages, use too much memory or
+     * are broken are closed instead of being reused.
+     */
+    public void release(PooledWebDriver pooledDriver) {
+        try {
+            pooledDriver.pagesServed++;
+            if (pooledDriver.pagesServed >= maxPagesPerSession) {
+                LOGGER.info("Recycling browser session after {} pages.", pooledDriver.pagesServed);
+                recycle(pooledDriver);
+                return;
+            }
+
+            long jsHeapBytes;
+            try {
+                jsHeapBytes = ((Number) ((JavascriptExecutor) pooledDriver.driver).executeScript(JS_HEAP_SCRIPT)).longValue();
+                // Don't carry cookies or the current page over to the next listing
+                pooledDriver.driver.manage().deleteAllCookies();
+                pooledDriver.driver.get("about:blank");
+            } catch (Exception e) {
+                LOGGER.warn("Browser session is broken, closing it. {}", e.getMessage());
+                discard(pooledDriver);
+                return;
+            }
+
+            if (jsHeapBytes > maxJsHeapBytes) {
+                LOGGER.info("Recycling browser session, JS heap is at {} MB.", jsHeapBytes / (1024 * 1024));
+                recycle(pooledDriver);
+                return;
+            }
+            if (shutDown) {
+                discard(pooledDriver);
+                return;
+            }
+            idleDrivers.offerFirst(pooledDriver);
+        } finally {
+            leases.release();
+            warmUp();
+        }
+    }
+
+    public void shutdown() {
+        shutDown = true;
+        warmer.shutdownNow();
+        PooledWebDriver pooledDriver;
+        while ((pooledDriver = idleDrivers.pollFirst()) != null) {
+            discard(pooledDriver);
+        }
+        LOGGER.info("WebDriver pool shut down. {}", describe());
+    }
+
+    public String describe() {
+        return String.format("WebDriverPool[open=%d, idle=%d, inUse=%d, created=%d, recycled=%d]",
+                openSessions.get(), idleDrivers.size(), maxSize - leases.availablePermits(), createdSessions.get(), recycledSessions.get());
+    }
+
+    private void replenish() {
+        while (!shutDown && idleDrivers.size() < minIdle && reserveSession()) {
+            try {
+                idleDrivers.offerLast(create());
+                LOGGER.info("Started a standby browser. {}", describe());
+            } catch (Exception e) {
+                LOGGER.error("Could not start a standby browser.", e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Takes one of the maxSize session slots before a browser is started, so concurrent borrows and the warmer can't
+     * start more browsers than that between them.
+     * @return false when all slots are taken.
+     */
+    private boolean reserveSession() {
+        while (true) {
+            int open = openSessions.get();
+            if (open >= maxSize) {
+                return false;
+            }
+            if (openSessions.compareAndSet(open, open + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Starts a browser in a slot taken with {@link #reserveSession()}; the slot is given back if Chrome doesn't start.
+     */
+    private PooledWebDriver create() {
+        try {
+            WebDriver driver = driverFactory.get();
+            createdSessions.incrementAndGet();
+            return new PooledWebDriver(driver);
+        } catch (RuntimeException e) {
+            openSessions.decrementAndGet();
+            throw e;
+        }
+    }
+
+    private boolean isHealthy(PooledWebDriver pooledDriver) {
+        try {
+            pooledDriver.driver.getWindowHandle();
+            return Long.valueOf(1).equals(((JavascriptExecutor) pooledDriver.driver).executeScript("return 1;"));
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    private void recycle(PooledWebDriver pooledDriver) {
+        recycledSessions.incrementAndGet();
+        discard(pooledDriver);
+    }
+
+    private void discard(PooledWebDriver pooledDriver) {
+        openSessions.decrementAndGet();
+        try {
+            pooledDriver.driver.quit();
+            LOGGER.info("WebDriver has been closed.");
+        } catch (Exception e) {
+            LOGGER.warn("Failed to close the WebDriver cleanly. {}", e.getMessage());
+        }
+    }
+
+    /**
+     * A browser session handed out by the pool.
+     */
+    public static class PooledWebDriver {
+        private final WebDriver driver;
+        private int pagesServed;
+
+        private PooledWebDriver(WebDriver driver) {
+            this.driver = driver;
+        }
+
+        public WebDriver driver() {
+            return driver;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+// Reads everything the OLX scraper needs from the rendered page in a single WebDriver call.
+// Parts that are not on the page come back as null instead of costing a wait.
+const main = document.querySelector("[data-testid='main']");
+const gallery = document.querySelector("[data-testid='image-galery-container']");
+
+// The city is the first paragraph of the first div after the location icon
+let city = null;
+const locationIcon = document.querySelector("img[alt='Location']");
+for (let sibling = locationIcon ? locationIcon.nextElementSibling : null; sibling; sibling = sibling.nextElementSibling) {
+    if (sibling.tagName === "DIV") {
+        const paragraph = sibling.querySelector("p");
+        city = paragraph ? paragraph.innerText : null;
+        break;
+    }
+}
+
+const imageUrls = gallery
+    ? [...new Set([...gallery.querySelectorAll("img")].map(img => img.getAttribute("src")).filter(src => src && src.startsWith("http")))]
+    : [];
+
+return {
+    text: main ? main.innerText : null,
+    city: city,
+    imageUrls: imageUrls,
+    html: document.documentElement.outerHTML
+};
@@ -0,0 +1,24 @@
+// Reads everything the publi24 scraper needs from the rendered page in a single WebDriver call.
+// Parts that are not on the page come back as null instead of costing a wait.
+const html = selector => {
+    const element = document.querySelector(selector);
+    return element ? element.innerHTML : null;
+};
+const text = selector => {
+    const element = document.querySelector(selector);
+    return element ? element.innerText : null;
+};
+
+// The place breadcrumb is country, city, area; the city is the second link
+const placeLinks = document.querySelectorAll("div[itemtype='https://schema.org/Place'] a[itemprop='url']");
+
+return {
+    imageScript: html(".detail-left script"),
+    ownerName: html(".user-profile-name"),
+    listingName: text("h1[itemprop='name']"),
+    price: text("[itemprop='price']"),
+    city: placeLinks.length > 1 ? placeLinks[1].innerText : null,
+    attributes: html(".article-attributes"),
+    description: html(".article-description"),
+    html: document.documentElement.outerHTML
+};
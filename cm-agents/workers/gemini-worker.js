@@ -0,0 +1,51 @@
+// A resident formatter worker for FormatterWorkerPool: it authenticates once and then answers prompts for as long as
+// the pool keeps it running, instead of paying for a Gemini CLI start per listing.
+//
+// Setup:   cd cm-agents/workers && npm install @google/genai
+// Config:  formatter.worker.command=node workers/gemini-worker.js   (relative to where the application is started)
+// Env:     GEMINI_API_KEY (required), GEMINI_MODEL (optional, defaults to gemini-2.5-flash)
+//
+// Protocol: one JSON request per line on stdin, {"id": "...", "prompt": "..."}, answered in order with one JSON line on
+// stdout, {"id": "...", "output": "..."} or {"id": "...", "error": "..."}. Nothing else may be written to stdout, so
+// logging goes to stderr.
+const readline = require("readline");
+const { GoogleGenAI } = require("@google/genai");
+
+const apiKey = process.env.GEMINI_API_KEY;
+if (!apiKey) {
+    console.error("GEMINI_API_KEY is not set");
+    process.exit(1);
+}
+const model = process.env.GEMINI_MODEL || "gemini-2.5-flash";
+const ai = new GoogleGenAI({ apiKey: apiKey });
+
+function answer(response) {
+    process.stdout.write(JSON.stringify(response) + "\n");
+}
+
+async function handle(line) {
+    let request;
+    try {
+        request = JSON.parse(line);
+    } catch (e) {
+        // Without an id the pool can't match the answer, it treats that as broken framing and restarts the worker
+        answer({ id: null, error: "Request is not valid JSON: " + e.message });
+        return;
+    }
+    try {
+        const result = await ai.models.generateContent({ model: model, contents: request.prompt });
+        answer({ id: request.id, output: result.text });
+    } catch (e) {
+        answer({ id: request.id, error: String(e && e.message ? e.message : e) });
+    }
+}
+
+// The pool sends a worker one request at a time, but they are still answered strictly in order
+let queue = Promise.resolve();
+readline.createInterface({ input: process.stdin, terminal: false })
+    .on("line", line => {
+        if (line.trim()) {
+            queue = queue.then(() => handle(line));
+        }
+    })
+    .on("close", () => queue.then(() => process.exit(0)));